@@ -0,0 +1,415 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.lang.management.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.awt.Transparency;
+import java.awt.color.*;
+import java.awt.image.*;
+import javax.imageio.*;
+
+/**
+ * This class is a benchmark harness that measures whole runs of ImgOp
+ * programs, from decoding the inputs through computing to encoding the
+ * outputs. It generates synthetic input images at several sizes and bit
+ * depths, runs a corpus of representative programs on each, and records the
+ * throughput, peak resident set size, and garbage collection time of every
+ * case to a JSON file. The results can be compared against a saved baseline,
+ * in which case the harness exits with status 2 if any case is slower than
+ * the baseline by more than the tolerance.
+ *
+ * <pre>
+ * java -cp ImgOp.jar com.garhoogin.imgop.Benchmark [--sizes 512,2048] [--depths 8,16,32]
+ *     [--runs 3] [--out benchmark.json] [--baseline FILE] [--tolerance 0.1]
+ * </pre>
+ */
+public class Benchmark {
+
+	/**
+	 * The programs measured. <code>$A</code> and <code>$B</code> stand for
+	 * the two input images and <code>$OUT</code> for the output image.
+	 */
+	private static final String PROGRAMS[][] = {
+		{ "gamma", "i", "$A", "n", "2.2", "p", "o", "$OUT" },
+		{ "swap", "i", "$A", "x", "0", "1", "0", "0", "1", "0", "0", "0", "0", "0", "1", "0", "0", "0", "0", "1",
+			"w", "m", "o", "$OUT" },
+		{ "difference", "i", "$A", "i", "$B", "s", "n", "2", "p", "n", "0.5", "p", "v", "0", "0", "0", "1", "a",
+			"o", "$OUT" },
+		{ "composite", "i", "$A", "i", "$B", "b", "over", "16", "16", "o", "$OUT" }
+	};
+
+	/**
+	 * The largest width and height of the generated images, so that a plane
+	 * fits in an array.
+	 */
+	private static final int MAX_SIZE = 46340;
+
+	/**
+	 * The result of one benchmark case.
+	 */
+	private static class Result {
+
+		/**
+		 * The name of the case, made of the program, bit depth, and size.
+		 */
+		String name;
+
+		/**
+		 * The size and bit depth of the input images.
+		 */
+		int width, height, bitDepth;
+
+		/**
+		 * The megapixels of input processed per second, from the median run.
+		 */
+		double megapixelsPerSecond;
+
+		/**
+		 * The peak resident set size in kilobytes, or -1 if unknown.
+		 */
+		long peakRssKb;
+
+		/**
+		 * The time spent in garbage collection over the timed runs, in
+		 * milliseconds.
+		 */
+		long gcMillis;
+	}
+
+	private Benchmark() {
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.setProperty("java.awt.headless", "true");
+
+		int sizes[] = { 512, 2048 };
+		int depths[] = { 8, 16, 32 };
+		int runs = 3;
+		File out = new File("benchmark.json");
+		File baseline = null;
+		double tolerance = 0.1;
+		for(int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if(option.equals("--sizes") && i + 1 < args.length) {
+				sizes = parseList(option, args[++i], 1, MAX_SIZE);
+			} else if(option.equals("--depths") && i + 1 < args.length) {
+				depths = parseList(option, args[++i], 8, 32);
+			} else if(option.equals("--runs") && i + 1 < args.length) {
+				runs = (int) ImgOp.parseOption(option, args[++i], 1, Integer.MAX_VALUE);
+			} else if(option.equals("--out") && i + 1 < args.length) {
+				out = new File(args[++i]);
+			} else if(option.equals("--baseline") && i + 1 < args.length) {
+				baseline = new File(args[++i]);
+			} else if(option.equals("--tolerance") && i + 1 < args.length) {
+				tolerance = ImgOp.parseDecimalOption(option, args[++i], 0.0);
+			} else {
+				System.err.println("Unknown option " + option + ".");
+				System.exit(1);
+			}
+		}
+		for(int depth : depths) {
+			if(depth != 8 && depth != 16 && depth != 32) {
+				System.err.println("--depths needs bit depths of 8, 16, or 32.");
+				System.exit(1);
+			}
+		}
+
+		//a malformed baseline is reported before the benchmark spends its time
+		Map<String, Double> base = null;
+		if(baseline != null) {
+			try {
+				base = readBaseline(baseline);
+			} catch(IOException ex) {
+				System.err.println(ex.getMessage());
+				System.exit(1);
+			}
+		}
+
+		List<Result> results = new ArrayList<>();
+		Path dir = Files.createTempDirectory("imgop-bench");
+		try {
+			for(int size : sizes) {
+				for(int depth : depths) {
+					File a = generate(dir, "a", size, depth, 1);
+					File b = generate(dir, "b", size, depth, 2);
+					File dst = new File(dir.toFile(), "out" + (depth == 32 ? ".fpi" : ".png"));
+					for(String program[] : PROGRAMS) {
+						Result r = run(program, a, b, dst, size, depth, runs);
+						results.add(r);
+						System.out.println(String.format("%-24s %10.2f MP/s %10d KB %6d ms GC",
+							r.name, r.megapixelsPerSecond, r.peakRssKb, r.gcMillis));
+					}
+					a.delete();
+					b.delete();
+					dst.delete();
+				}
+			}
+		} finally {
+			Files.delete(dir);
+		}
+
+		writeResults(results, out);
+		if(base != null && compare(results, base, tolerance) > 0) {
+			System.exit(2);
+		}
+	}
+
+	/**
+	 * Parses the comma separated list of integers given to an option, and
+	 * exits with a message if any is not a whole number in range.
+	 *
+	 * @param option the option
+	 * @param s      the list
+	 * @param min    the smallest number allowed
+	 * @param max    the largest number allowed
+	 * @return       the integers
+	 */
+	private static int[] parseList(String option, String s, int min, int max) {
+		String parts[] = s.split(",");
+		int list[] = new int[parts.length];
+		for(int i = 0; i < parts.length; i++) {
+			list[i] = (int) ImgOp.parseOption(option, parts[i], min, max);
+		}
+		return list;
+	}
+
+	/**
+	 * Generates a synthetic input image: smooth gradients with noise, and a
+	 * partly transparent alpha channel.
+	 *
+	 * @param dir   the directory to write the image to
+	 * @param name  the base name of the file
+	 * @param size  the width and height of the image
+	 * @param depth the bit depth, 8 or 16 for PNG or 32 for FPI
+	 * @param seed  the seed for the noise
+	 * @return      the file written
+	 * @throws IOException if the image could not be written
+	 */
+	private static File generate(Path dir, String name, int size, int depth, long seed) throws IOException {
+		Random random = new Random(seed);
+		int nPx = size * size;
+		float planes[][] = new float[4][nPx];
+		for(int y = 0; y < size; y++) {
+			for(int x = 0; x < size; x++) {
+				int i = y * size + x;
+				float u = (float) x / size, v = (float) y / size;
+				planes[0][i] = clamp(u + 0.1f * random.nextFloat());
+				planes[1][i] = clamp(v + 0.1f * random.nextFloat());
+				planes[2][i] = clamp(1.0f - u * v + 0.1f * random.nextFloat());
+				planes[3][i] = clamp(0.5f + 0.5f * (float) Math.sin((x + y) * seed * 0.01));
+			}
+		}
+
+		if(depth == 32) {
+			File f = new File(dir.toFile(), name + ".fpi");
+			FloatImageIO.write(new FloatImage(size, size, planes[0], planes[1], planes[2], planes[3]), f);
+			return f;
+		}
+
+		File f = new File(dir.toFile(), name + ".png");
+		BufferedImage im;
+		if(depth == 16) {
+			ColorModel model = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), true, false,
+				Transparency.TRANSLUCENT, DataBuffer.TYPE_USHORT);
+			im = new BufferedImage(model, model.createCompatibleWritableRaster(size, size), false, null);
+		} else {
+			im = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+		}
+		WritableRaster raster = im.getRaster();
+		int max = (1 << depth) - 1;
+		int row[] = new int[size * 4];
+		for(int y = 0; y < size; y++) {
+			for(int x = 0; x < size; x++) {
+				for(int c = 0; c < 4; c++) {
+					row[x * 4 + c] = Math.round(planes[c][y * size + x] * max);
+				}
+			}
+			raster.setPixels(0, y, size, 1, row);
+		}
+		ImageIO.write(im, "png", f);
+		return f;
+	}
+
+	/**
+	 * Clamps a value to [0, 1].
+	 *
+	 * @param f the value
+	 * @return  the clamped value
+	 */
+	private static float clamp(float f) {
+		return Math.max(0.0f, Math.min(1.0f, f));
+	}
+
+	/**
+	 * Runs one benchmark case: one warm up run followed by the timed runs.
+	 *
+	 * @param program the program with placeholders
+	 * @param a       the first input image
+	 * @param b       the second input image
+	 * @param dst     the output image
+	 * @param size    the size of the input images
+	 * @param depth   the bit depth of the input images
+	 * @param runs    the number of timed runs
+	 * @return        the result
+	 * @throws Exception if the program failed
+	 */
+	private static Result run(String program[], File a, File b, File dst, int size, int depth, int runs)
+			throws Exception {
+		String args[] = new String[program.length - 1];
+		for(int i = 1; i < program.length; i++) {
+			String arg = program[i];
+			if(arg.equals("$A")) arg = a.getPath();
+			else if(arg.equals("$B")) arg = b.getPath();
+			else if(arg.equals("$OUT")) arg = dst.getPath();
+			args[i - 1] = arg;
+		}
+		Program compiled = Program.compile(args);
+
+		compiled.execute();
+		System.gc();
+		resetPeakRss();
+		long gc0 = getGcMillis();
+		long times[] = new long[Math.max(1, runs)];
+		for(int i = 0; i < times.length; i++) {
+			long t0 = System.nanoTime();
+			compiled.execute();
+			times[i] = System.nanoTime() - t0;
+		}
+		Arrays.sort(times);
+
+		Result r = new Result();
+		r.name = program[0] + "/" + depth + "/" + size;
+		r.width = size;
+		r.height = size;
+		r.bitDepth = depth;
+		r.megapixelsPerSecond = (double) size * size / 1.0e6 / (times[times.length / 2] / 1.0e9);
+		r.peakRssKb = getPeakRssKb();
+		r.gcMillis = getGcMillis() - gc0;
+		return r;
+	}
+
+	/**
+	 * Gets the total time all garbage collectors have spent collecting.
+	 *
+	 * @return the time in milliseconds
+	 */
+	private static long getGcMillis() {
+		long total = 0;
+		for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			total += Math.max(0, gc.getCollectionTime());
+		}
+		return total;
+	}
+
+	/**
+	 * Resets the peak resident set size of the process where the operating
+	 * system supports it, so that each case reports its own peak.
+	 */
+	private static void resetPeakRss() {
+		try {
+			Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII));
+		} catch(IOException | UnsupportedOperationException | SecurityException ex) {
+			//the peak then covers the whole run of the harness
+		}
+	}
+
+	/**
+	 * Gets the peak resident set size of the process.
+	 *
+	 * @return the peak in kilobytes, or -1 if it is not available
+	 */
+	private static long getPeakRssKb() {
+		try {
+			for(String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+				if(line.startsWith("VmHWM:")) {
+					return Long.parseLong(line.substring(6).replace("kB", "").trim());
+				}
+			}
+		} catch(IOException | NumberFormatException ex) {
+		}
+		return -1;
+	}
+
+	/**
+	 * Writes results as JSON, one case per line.
+	 *
+	 * @param results the results
+	 * @param f       the file to write
+	 * @throws IOException if the file could not be written
+	 */
+	private static void writeResults(List<Result> results, File f) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\n");
+		sb.append("  \"java\": \"").append(System.getProperty("java.version")).append("\",\n");
+		sb.append("  \"threads\": ").append(Parallel.threads).append(",\n");
+		sb.append("  \"results\": [\n");
+		for(int i = 0; i < results.size(); i++) {
+			Result r = results.get(i);
+			sb.append(String.format(Locale.ROOT, "    {\"name\": \"%s\", \"width\": %d, \"height\": %d, \"bitDepth\": %d, "
+				+ "\"megapixelsPerSecond\": %.3f, \"peakRssKb\": %d, \"gcMillis\": %d}",
+				r.name, r.width, r.height, r.bitDepth, r.megapixelsPerSecond, r.peakRssKb, r.gcMillis));
+			sb.append(i + 1 < results.size() ? ",\n" : "\n");
+		}
+		sb.append("  ]\n");
+		sb.append("}\n");
+		Files.write(f.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the throughput of each case from a results file written by this
+	 * harness.
+	 *
+	 * @param f the file to read
+	 * @return  the megapixels per second of each case by name
+	 * @throws IOException if the file could not be read, or holds no results
+	 *                     or a throughput that is not a number
+	 */
+	private static Map<String, Double> readBaseline(File f) throws IOException {
+		Pattern p = Pattern.compile("\"name\": \"([^\"]*)\".*\"megapixelsPerSecond\": ([-0-9.eE+]+)");
+		Map<String, Double> baseline = new HashMap<>();
+		int lineNumber = 0;
+		for(String line : Files.readAllLines(f.toPath(), StandardCharsets.UTF_8)) {
+			lineNumber++;
+			Matcher m = p.matcher(line);
+			if(!m.find()) continue;
+			try {
+				baseline.put(m.group(1), Double.parseDouble(m.group(2)));
+			} catch(NumberFormatException ex) {
+				throw new IOException("Malformed baseline " + f + " at line " + lineNumber + ": " + m.group(2)
+					+ " is not a number");
+			}
+		}
+		if(baseline.isEmpty()) throw new IOException("Malformed baseline " + f + ": no results found");
+		return baseline;
+	}
+
+	/**
+	 * Compares results against a baseline and prints the cases that got
+	 * slower by more than the tolerance.
+	 *
+	 * @param results   the results
+	 * @param baseline  the megapixels per second of each baseline case
+	 * @param tolerance the allowed fraction of slowdown
+	 * @return          the number of cases that got slower
+	 */
+	private static int compare(List<Result> results, Map<String, Double> baseline, double tolerance) {
+		int regressions = 0;
+		for(Result r : results) {
+			Double base = baseline.get(r.name);
+			if(base == null) continue;
+			double ratio = r.megapixelsPerSecond / base;
+			if(ratio < 1.0 - tolerance) {
+				regressions++;
+				System.out.println(String.format("Regression in %s: %.2f MP/s, baseline %.2f MP/s (%+.1f%%)",
+					r.name, r.megapixelsPerSecond, base, (ratio - 1.0) * 100.0));
+			}
+		}
+		System.out.println(regressions == 0 ? "No regressions against the baseline."
+			: regressions + " regression" + (regressions == 1 ? "" : "s") + " against the baseline.");
+		return regressions;
+	}
+
+}
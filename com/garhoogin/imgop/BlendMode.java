@@ -0,0 +1,91 @@
+package com.garhoogin.imgop;
+
+/**
+ * The ways a source image can be composited onto a destination image. The
+ * first six are the Porter-Duff operators; the rest blend the colors of the
+ * two images where both are present and otherwise behave like OVER.
+ */
+public enum BlendMode {
+
+	/**
+	 * The source is placed over the destination.
+	 */
+	OVER,
+
+	/**
+	 * The source where the destination is present.
+	 */
+	IN,
+
+	/**
+	 * The source where the destination is absent.
+	 */
+	OUT,
+
+	/**
+	 * The source over the destination, only where the destination is
+	 * present.
+	 */
+	ATOP,
+
+	/**
+	 * The source where the destination is absent and the destination where
+	 * the source is absent.
+	 */
+	XOR,
+
+	/**
+	 * The sum of the source and destination.
+	 */
+	PLUS,
+
+	/**
+	 * The product of the source and destination colors.
+	 */
+	MULTIPLY,
+
+	/**
+	 * The complement of the product of the complements of the source and
+	 * destination colors.
+	 */
+	SCREEN,
+
+	/**
+	 * MULTIPLY where the destination is dark, SCREEN where it is light.
+	 */
+	OVERLAY;
+
+	/**
+	 * Gets a blend mode by its name, ignoring case.
+	 *
+	 * @param name the name of the mode
+	 * @return     the blend mode, or null if there is no such mode
+	 */
+	public static BlendMode forName(String name) {
+		for(BlendMode mode : values()) {
+			if(mode.name().equalsIgnoreCase(name)) return mode;
+		}
+		return null;
+	}
+
+	/**
+	 * Determines whether the result is the destination wherever the source
+	 * is fully transparent.
+	 *
+	 * @return true if a transparent source leaves the destination unchanged
+	 */
+	boolean keepsDestination() {
+		return this != IN && this != OUT;
+	}
+
+	/**
+	 * Determines whether this mode blends colors rather than being a
+	 * Porter-Duff operator.
+	 *
+	 * @return true for the blending modes
+	 */
+	boolean isBlend() {
+		return this == MULTIPLY || this == SCREEN || this == OVERLAY;
+	}
+
+}
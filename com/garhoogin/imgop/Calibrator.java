@@ -0,0 +1,318 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * This class tunes how ImgOp splits work for the machine it runs on. It
+ * times representative programs on images held in memory with different
+ * settings, and saves the fastest settings to a profile that later runs
+ * load at startup.
+ *
+ * Three settings are tuned, each against the kind of work it affects:
+ *
+ * <ul>
+ * <li><b>threads</b> the number of threads in the pool, timed on both kinds
+ *     of work below.</li>
+ * <li><b>tilePixels</b> the size of the tiles runs of arithmetic, color
+ *     transform, clamp, and flip commands are executed in, timed on such a
+ *     run.</li>
+ * <li><b>bandRows</b> the number of rows in a band of the commands that
+ *     work on whole images, timed on a rotation, a composite, and a
+ *     comparison.</li>
+ * </ul>
+ *
+ * The profile records the number of processors and the architecture it was
+ * made on, and is ignored on a machine that differs, so that a home
+ * directory shared between machines does not carry one machine's settings
+ * to another.
+ */
+class Calibrator {
+
+	/**
+	 * The width and height of the images timed.
+	 */
+	private static final int SIZE = 1024;
+
+	/**
+	 * The number of timed runs of each setting, of which the fastest counts.
+	 */
+	private static final int RUNS = 5;
+
+	/**
+	 * How much slower than the fastest a setting may be and still be chosen
+	 * for being smaller: fewer threads leave more of the machine to others,
+	 * and smaller tiles and bands use less memory.
+	 */
+	private static final double SLACK = 0.03;
+
+	/**
+	 * The tile sizes tried, in pixels.
+	 */
+	private static final int TILE_PIXELS[] = { 2048, 4096, 8192, 16384, 32768, 65536 };
+
+	/**
+	 * The band heights tried, in rows.
+	 */
+	private static final int BAND_ROWS[] = { 16, 32, 64, 128, 256 };
+
+	/**
+	 * The program timed for tile sizes: a run of pointwise commands.
+	 */
+	private static final String TILED_PROGRAM[] = {
+		"i", "A", "n", "2.2", "p", "x", "0.9", "0.1", "0", "0", "0.1", "0.8", "0.1", "0", "0", "0.1", "0.9", "0",
+		"0", "0", "0", "1", "w", "m", "v", "0", "0", "0", "0", "c", "v", "1", "1", "1", "1", "C", "o", "OUT"
+	};
+
+	/**
+	 * The program timed for band heights: commands that work on whole
+	 * images.
+	 */
+	private static final String BANDED_PROGRAM[] = {
+		"i", "A", "r", "90", "o", "OUT1", "i", "A", "i", "B", "b", "over", "16", "16", "o", "OUT2",
+		"i", "A", "i", "B", "S", "e"
+	};
+
+	/**
+	 * The settings of a profile.
+	 */
+	private static final String KEY_THREADS = "threads", KEY_TILE_PIXELS = "tilePixels", KEY_BAND_ROWS = "bandRows";
+
+	/**
+	 * The machine a profile was made on.
+	 */
+	private static final String KEY_PROCESSORS = "processors", KEY_ARCH = "arch";
+
+	private Calibrator() {
+	}
+
+	/**
+	 * Gets where the profile is kept unless another file is given.
+	 *
+	 * @return <code>.imgop/profile.properties</code> in the user's home
+	 *         directory
+	 */
+	static File getDefaultProfile() {
+		return new File(new File(System.getProperty("user.home"), ".imgop"), "profile.properties");
+	}
+
+	/**
+	 * Loads a profile and applies its settings. A missing profile is not an
+	 * error; a malformed one, or one made on another machine, is ignored with
+	 * a warning.
+	 *
+	 * @param f the profile
+	 */
+	static void load(File f) {
+		if(!f.isFile()) return;
+		Properties profile = new Properties();
+		try(Reader in = new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8)) {
+			profile.load(in);
+		} catch(IOException ex) {
+			System.err.println("Cannot read the profile " + f + ": " + ex.getMessage());
+			return;
+		}
+
+		if(!String.valueOf(Runtime.getRuntime().availableProcessors()).equals(profile.getProperty(KEY_PROCESSORS))
+			|| !System.getProperty("os.arch").equals(profile.getProperty(KEY_ARCH))) {
+			System.err.println("Ignoring the profile " + f + ", it was made on another machine. "
+				+ "Run with --calibrate to make a new one.");
+			return;
+		}
+		try {
+			int threads = getSetting(profile, KEY_THREADS);
+			int tilePixels = getSetting(profile, KEY_TILE_PIXELS);
+			int bandRows = getSetting(profile, KEY_BAND_ROWS);
+			Parallel.threads = threads;
+			TiledExecutor.tilePixels = tilePixels;
+			Parallel.bandRows = bandRows;
+		} catch(IllegalArgumentException ex) {
+			System.err.println("Ignoring the profile " + f + ": " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Gets a setting of a profile.
+	 *
+	 * @param profile the profile
+	 * @param key     the name of the setting
+	 * @return        the value
+	 * @throws IllegalArgumentException if the setting is missing or is not
+	 *                                  a positive integer
+	 */
+	private static int getSetting(Properties profile, String key) {
+		String value = profile.getProperty(key);
+		if(value == null) throw new IllegalArgumentException(key + " is missing");
+		try {
+			int n = Integer.parseInt(value.trim());
+			if(n > 0) return n;
+		} catch(NumberFormatException ex) {
+		}
+		throw new IllegalArgumentException(key + " must be a positive integer");
+	}
+
+	/**
+	 * Times the settings, applies the fastest, and saves them to a profile.
+	 *
+	 * @param f      the profile
+	 * @param report the stream to print the timings and chosen settings to
+	 * @throws IOException if the profile could not be written
+	 */
+	static void calibrate(File f, PrintStream report) throws IOException {
+		int processors = Runtime.getRuntime().availableProcessors();
+		report.println("Calibrating on " + processors + " processor" + (processors == 1 ? "" : "s") + " ("
+			+ System.getProperty("os.arch") + ", Java " + System.getProperty("java.version") + ").");
+
+		Map<String, FloatImage> inputs = new HashMap<>();
+		inputs.put("A", generate(1));
+		inputs.put("B", generate(2));
+		Program tiled, banded;
+		try {
+			tiled = Program.compile(TILED_PROGRAM);
+			banded = Program.compile(BANDED_PROGRAM);
+		} catch(ProgramException ex) {
+			throw new IllegalStateException(ex);
+		}
+
+		//warm up the compiler before anything is compared
+		time(tiled, inputs);
+		time(banded, inputs);
+
+		//threads are timed with the current sizes, then sizes with the chosen threads
+		int threadCounts[] = getThreadCounts(processors);
+		long tiledTimes[] = new long[threadCounts.length];
+		long bandedTimes[] = new long[threadCounts.length];
+		long totals[] = new long[threadCounts.length];
+		report.println();
+		report.println(String.format("%-12s %12s %12s", "threads", "tiled ms", "banded ms"));
+		for(int i = 0; i < threadCounts.length; i++) {
+			Parallel.threads = threadCounts[i];
+			tiledTimes[i] = time(tiled, inputs);
+			bandedTimes[i] = time(banded, inputs);
+			totals[i] = tiledTimes[i] + bandedTimes[i];
+			report.println(String.format("%-12d %12s %12s", threadCounts[i], millis(tiledTimes[i]), millis(bandedTimes[i])));
+		}
+		Parallel.threads = threadCounts[pickFastest(totals)];
+
+		long tileTimes[] = new long[TILE_PIXELS.length];
+		report.println();
+		report.println(String.format("%-12s %12s", "tile pixels", "tiled ms"));
+		for(int i = 0; i < TILE_PIXELS.length; i++) {
+			TiledExecutor.tilePixels = TILE_PIXELS[i];
+			tileTimes[i] = time(tiled, inputs);
+			report.println(String.format("%-12d %12s", TILE_PIXELS[i], millis(tileTimes[i])));
+		}
+		TiledExecutor.tilePixels = TILE_PIXELS[pickFastest(tileTimes)];
+
+		long bandTimes[] = new long[BAND_ROWS.length];
+		report.println();
+		report.println(String.format("%-12s %12s", "band rows", "banded ms"));
+		for(int i = 0; i < BAND_ROWS.length; i++) {
+			Parallel.bandRows = BAND_ROWS[i];
+			bandTimes[i] = time(banded, inputs);
+			report.println(String.format("%-12d %12s", BAND_ROWS[i], millis(bandTimes[i])));
+		}
+		Parallel.bandRows = BAND_ROWS[pickFastest(bandTimes)];
+
+		Properties profile = new Properties();
+		profile.setProperty(KEY_THREADS, String.valueOf(Parallel.threads));
+		profile.setProperty(KEY_TILE_PIXELS, String.valueOf(TiledExecutor.tilePixels));
+		profile.setProperty(KEY_BAND_ROWS, String.valueOf(Parallel.bandRows));
+		profile.setProperty(KEY_PROCESSORS, String.valueOf(processors));
+		profile.setProperty(KEY_ARCH, System.getProperty("os.arch"));
+		File dir = f.getAbsoluteFile().getParentFile();
+		if(dir != null && !dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+		try(Writer out = new OutputStreamWriter(new FileOutputStream(f), StandardCharsets.UTF_8)) {
+			profile.store(out, "ImgOp tuning profile, written by --calibrate");
+		}
+
+		report.println();
+		report.println("Chosen settings:");
+		report.println(String.format("  %-12s %d", "threads", Parallel.threads));
+		report.println(String.format("  %-12s %d", "tile pixels", TiledExecutor.tilePixels));
+		report.println(String.format("  %-12s %d", "band rows", Parallel.bandRows));
+		report.println("Saved to " + f + ".");
+	}
+
+	/**
+	 * Gets the thread counts to try: powers of two up to the number of
+	 * processors, and the number of processors itself.
+	 *
+	 * @param processors the number of processors
+	 * @return           the thread counts in increasing order
+	 */
+	private static int[] getThreadCounts(int processors) {
+		List<Integer> counts = new ArrayList<>();
+		for(int n = 1; n < processors; n *= 2) counts.add(n);
+		counts.add(processors);
+		int list[] = new int[counts.size()];
+		for(int i = 0; i < list.length; i++) list[i] = counts.get(i);
+		return list;
+	}
+
+	/**
+	 * Generates an image of noise in every channel, so that no channel is
+	 * constant and every command does its full work.
+	 *
+	 * @param seed the seed for the noise
+	 * @return     the image
+	 */
+	private static FloatImage generate(long seed) {
+		Random random = new Random(seed);
+		float planes[][] = new float[4][SIZE * SIZE];
+		for(int c = 0; c < 4; c++) {
+			for(int i = 0; i < planes[c].length; i++) planes[c][i] = random.nextFloat();
+		}
+		return new FloatImage(SIZE, SIZE, planes[0], planes[1], planes[2], planes[3]);
+	}
+
+	/**
+	 * Times a program with the current settings, after one run to warm up.
+	 *
+	 * @param program the program
+	 * @param inputs  the images it reads
+	 * @return        the time of the fastest run in nanoseconds
+	 * @throws IOException if the program failed
+	 */
+	private static long time(Program program, Map<String, FloatImage> inputs) throws IOException {
+		long best = Long.MAX_VALUE;
+		for(int i = 0; i <= RUNS; i++) {
+			Session session = new Session();
+			session.preloaded = inputs;
+			session.outputs = new HashMap<>();
+			session.messages = new PrintStream(new ByteArrayOutputStream());
+			long t0 = System.nanoTime();
+			program.execute(session);
+			long t = System.nanoTime() - t0;
+			if(i > 0) best = Math.min(best, t);
+		}
+		return best;
+	}
+
+	/**
+	 * Picks the first setting that is within {@link #SLACK} of the fastest.
+	 *
+	 * @param times the time of each setting, smallest setting first
+	 * @return      the index of the setting
+	 */
+	private static int pickFastest(long times[]) {
+		long min = Long.MAX_VALUE;
+		for(long t : times) min = Math.min(min, t);
+		for(int i = 0; i < times.length; i++) {
+			if(times[i] <= min * (1.0 + SLACK)) return i;
+		}
+		return 0;
+	}
+
+	/**
+	 * Formats a time in milliseconds.
+	 *
+	 * @param nanos the time in nanoseconds
+	 * @return      the time in milliseconds with one decimal
+	 */
+	private static String millis(long nanos) {
+		return String.format(Locale.ROOT, "%.1f", nanos / 1.0e6);
+	}
+
+}
@@ -0,0 +1,546 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * This class runs a program on worker processes. The input images are split
+ * into bands of rows, and each band is sent to a {@link Worker}, which runs
+ * the whole program on it and sends back the bands of the outputs. The bands
+ * are then put back together and written as usual.
+ *
+ * This only works for programs that compute every pixel from the same pixel
+ * of their inputs, so programs that flip, composite, or compare images are
+ * rejected. When a worker fails, stops answering, or its connection drops,
+ * the bands it was given are sent to the remaining workers. A band a worker
+ * runs out of memory on is sent to the other workers, and that worker goes
+ * on with other bands.
+ */
+class Coordinator {
+
+	/**
+	 * The number of bands per worker, so that work is spread evenly when
+	 * workers run at different speeds.
+	 */
+	private static final int BANDS_PER_WORKER = 4;
+
+	/**
+	 * The number of times a band is sent out before giving up.
+	 */
+	private static final int MAX_ATTEMPTS = 3;
+
+	/**
+	 * How long to wait for a worker to accept a connection, in milliseconds.
+	 */
+	private static final int CONNECT_TIMEOUT = 5000;
+
+	/**
+	 * How long to wait for a worker to answer, in milliseconds. A worker only
+	 * answers once its band is done, so this is long enough for a large band.
+	 */
+	private static final int READ_TIMEOUT = 10 * 60 * 1000;
+
+	/**
+	 * The program being run.
+	 */
+	private final Program program;
+
+	/**
+	 * The command line of the program, sent to the workers.
+	 */
+	private final String args[];
+
+	/**
+	 * The ports of the workers on the loopback interface.
+	 */
+	private final List<Integer> ports;
+
+	/**
+	 * The result of one band.
+	 */
+	private static class Band {
+
+		/**
+		 * The first row of the band.
+		 */
+		int y0;
+
+		/**
+		 * The row after the last row of the band.
+		 */
+		int y1;
+
+		/**
+		 * The number of times the band was sent out and the connection
+		 * failed.
+		 */
+		int attempts;
+
+		/**
+		 * The ports of the workers that ran out of memory on the band.
+		 */
+		final Set<Integer> outOfMemoryOn = new HashSet<>();
+
+		/**
+		 * What the program printed.
+		 */
+		String messages;
+
+		/**
+		 * The number of checks that failed.
+		 */
+		int failedChecks;
+
+		/**
+		 * The bands of the output images by their paths.
+		 */
+		Map<String, FloatImage> outputs;
+	}
+
+	private Coordinator(Program program, String args[], List<Integer> ports) {
+		this.program = program;
+		this.args = args;
+		this.ports = ports;
+	}
+
+	/**
+	 * Create a Coordinator for a program, checking that the program can be
+	 * split into bands.
+	 *
+	 * @param program the program
+	 * @param args    the command line of the program
+	 * @param ports   the ports of the workers
+	 * @return        the coordinator
+	 * @throws ProgramException if an instruction needs pixels from other
+	 *                          bands
+	 */
+	static Coordinator create(Program program, String args[], List<Integer> ports) throws ProgramException {
+		for(Program.Instruction ins : program.code) {
+			switch(ins.op) {
+				case 'i':
+				case 'n':
+				case 'v':
+				case 'x':
+				case 'a':
+				case 's':
+				case 'm':
+				case 'd':
+				case 'p':
+				case 'c':
+				case 'C':
+				case 'o':
+				case 't':
+				case 'T':
+					break;
+				case 'e':
+					if(program.code[ins.args[0]].type != Program.Type.IMAGE) break;
+					throw new ProgramException(ins.position, "printing an image cannot be split among workers");
+				default:
+					throw new ProgramException(ins.position, "command " + ins.op
+						+ " uses pixels from all over its images and cannot be split among workers");
+			}
+		}
+		return new Coordinator(program, args, ports);
+	}
+
+	/**
+	 * Run the program on the workers.
+	 *
+	 * @param session the session to read and write images and print through,
+	 *                which also counts failed checks
+	 * @throws IOException if an image could not be read or written, or every
+	 *                     worker failed
+	 */
+	void run(Session session) throws IOException {
+		Map<String, FloatImage> inputs = new LinkedHashMap<>();
+		int width = -1, height = -1;
+		for(int pc : this.program.getInputs()) {
+			String path = this.program.code[pc].path;
+			if(inputs.containsKey(path)) continue;
+			FloatImage im = session.load(path);
+			inputs.put(path, im);
+			if(width == -1) {
+				width = im.width;
+				height = im.height;
+			} else if(im.width != width || im.height != height) {
+				//where images do not overlap depends on the whole image
+				session.messages.println("Input images differ in size, running locally.");
+				session.preloaded = inputs;
+				this.program.execute(session);
+				return;
+			}
+		}
+		if(width == -1) {
+			this.program.execute(session);
+			return;
+		}
+
+		int nBands = Math.min(Math.max(1, height), this.ports.size() * BANDS_PER_WORKER);
+		List<Band> bands = new ArrayList<>();
+		for(int b = 0; b < nBands; b++) {
+			Band band = new Band();
+			band.y0 = (int) ((long) height * b / nBands);
+			band.y1 = (int) ((long) height * (b + 1) / nBands);
+			bands.add(band);
+		}
+		this.dispatch(bands, inputs);
+
+		Band first = bands.get(0);
+		session.messages.print(first.messages);
+		session.messages.flush();
+		//values other than images are the same in every band
+		session.failedChecks += first.failedChecks;
+		for(String path : first.outputs.keySet()) {
+			List<FloatImage> parts = new ArrayList<>();
+			for(Band band : bands) parts.add(band.outputs.get(path));
+			session.store(FloatImage.stackRows(parts), path);
+		}
+	}
+
+	/**
+	 * Sends bands to the workers until every band is done. Each worker has
+	 * its own connection and takes the next band whenever it finishes one.
+	 *
+	 * @param bands  the bands
+	 * @param inputs the input images by their paths
+	 * @throws IOException if the program failed, a band failed on every
+	 *                     attempt, or every worker failed
+	 */
+	private void dispatch(List<Band> bands, final Map<String, FloatImage> inputs) throws IOException {
+		final BandQueue queue = new BandQueue(bands, this.ports);
+		final AtomicReference<IOException> failure = new AtomicReference<>();
+		ExecutorService pool = Executors.newFixedThreadPool(this.ports.size());
+		try {
+			List<Future<Void>> futures = new ArrayList<>();
+			for(final int port : this.ports) {
+				futures.add(pool.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws InterruptedException {
+						try {
+							Coordinator.this.serveWorker(port, queue, inputs);
+						} catch(WorkerError ex) {
+							failure.set(ex);
+							queue.abort(null);
+						} catch(IOException ex) {
+							failure.set(new IOException("Worker on port " + port + " failed: " + ex.getMessage(), ex));
+						} finally {
+							queue.leave(port);
+						}
+						return null;
+					}
+				}));
+			}
+			for(Future<Void> f : futures) {
+				try {
+					f.get();
+				} catch(ExecutionException ex) {
+					Throwable cause = ex.getCause();
+					if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+					if(cause instanceof Error) throw (Error) cause;
+					throw new IOException(cause);
+				}
+			}
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for workers");
+		} finally {
+			pool.shutdownNow();
+		}
+
+		if(!queue.isDone()) {
+			IOException cause = failure.get();
+			if(cause instanceof WorkerError) throw cause;
+			String reason = queue.getAbortReason();
+			throw new IOException(reason != null ? reason : "Every worker failed", cause);
+		}
+	}
+
+	/**
+	 * Sends bands to one worker until every band is done. A band the worker
+	 * fails on is put back for the other workers, unless it has failed too
+	 * often. A band the worker runs out of memory on is put back for the
+	 * other workers too, but the worker stays in use for other bands.
+	 *
+	 * @param port   the port of the worker
+	 * @param queue  the bands
+	 * @param inputs the input images by their paths
+	 * @throws WorkerError          if the program failed on the worker
+	 * @throws IOException          if the worker could not be reached or its
+	 *                              connection failed
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private void serveWorker(int port, BandQueue queue, Map<String, FloatImage> inputs)
+			throws IOException, InterruptedException {
+		try(Socket socket = new Socket()) {
+			socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+			socket.setTcpNoDelay(true);
+			//a worker that stopped answering is treated like a dropped connection
+			socket.setSoTimeout(READ_TIMEOUT);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			Band band;
+			while((band = queue.take(port)) != null) {
+				try {
+					this.send(band, inputs, out, in);
+				} catch(WorkerOutOfMemory ex) {
+					//the connection is still in step, only the band goes elsewhere
+					queue.retryElsewhere(band, port);
+					continue;
+				} catch(WorkerError ex) {
+					throw ex;
+				} catch(IOException ex) {
+					if(++band.attempts < MAX_ATTEMPTS) queue.retry(band);
+					else queue.abort("A band failed " + MAX_ATTEMPTS + " times");
+					throw ex;
+				}
+				queue.done();
+			}
+		}
+	}
+
+	/**
+	 * The bands waiting to be sent to a worker, shared by the threads serving
+	 * the workers. A thread with nothing to send waits here until a band is
+	 * put back, every band is done, or the run is aborted.
+	 */
+	private static class BandQueue {
+
+		/**
+		 * The bands not yet taken by a worker.
+		 */
+		private final Deque<Band> pending;
+
+		/**
+		 * The ports of the workers still in use.
+		 */
+		private final Set<Integer> live;
+
+		/**
+		 * The number of bands not yet done.
+		 */
+		private int remaining;
+
+		/**
+		 * Why the run was aborted, null if it was aborted for a failure of the
+		 * program, or if it was not aborted.
+		 */
+		private String abortReason;
+
+		/**
+		 * Whether the run was aborted.
+		 */
+		private boolean aborted;
+
+		BandQueue(List<Band> bands, List<Integer> ports) {
+			this.pending = new ArrayDeque<>(bands);
+			this.live = new HashSet<>(ports);
+			this.remaining = bands.size();
+		}
+
+		/**
+		 * Takes the next band for a worker, skipping bands the worker ran out
+		 * of memory on, and waits if there is none.
+		 *
+		 * @param port the port of the worker
+		 * @return     the band, or null if every band is done or the run was
+		 *             aborted
+		 * @throws InterruptedException if the thread is interrupted
+		 */
+		synchronized Band take(int port) throws InterruptedException {
+			while(!this.aborted && this.remaining > 0) {
+				for(Iterator<Band> it = this.pending.iterator(); it.hasNext();) {
+					Band band = it.next();
+					if(!band.outOfMemoryOn.contains(port)) {
+						it.remove();
+						return band;
+					}
+				}
+				this.wait();
+			}
+			return null;
+		}
+
+		/**
+		 * Marks a band as done.
+		 */
+		synchronized void done() {
+			if(--this.remaining == 0) this.notifyAll();
+		}
+
+		/**
+		 * Puts a band back after its worker failed.
+		 *
+		 * @param band the band
+		 */
+		synchronized void retry(Band band) {
+			this.pending.add(band);
+			this.notifyAll();
+		}
+
+		/**
+		 * Puts a band back after its worker ran out of memory on it, so that
+		 * it is only sent to other workers. The run is aborted if every
+		 * worker still in use ran out of memory on it.
+		 *
+		 * @param band the band
+		 * @param port the port of the worker
+		 */
+		synchronized void retryElsewhere(Band band, int port) {
+			band.outOfMemoryOn.add(port);
+			this.pending.add(band);
+			this.checkOutOfMemory();
+			this.notifyAll();
+		}
+
+		/**
+		 * Stops using a worker. The run is aborted if a band waits only for
+		 * this worker.
+		 *
+		 * @param port the port of the worker
+		 */
+		synchronized void leave(int port) {
+			this.live.remove(port);
+			this.checkOutOfMemory();
+			this.notifyAll();
+		}
+
+		/**
+		 * Aborts the run if a band ran out of memory on every worker still in
+		 * use.
+		 */
+		private void checkOutOfMemory() {
+			if(this.live.isEmpty()) return;
+			for(Band band : this.pending) {
+				if(band.outOfMemoryOn.containsAll(this.live)) {
+					this.abort("A band ran out of memory on every worker");
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Aborts the run, waking every waiting worker.
+		 *
+		 * @param reason why the run was aborted, or null if the program
+		 *               failed
+		 */
+		synchronized void abort(String reason) {
+			if(!this.aborted) this.abortReason = reason;
+			this.aborted = true;
+			this.notifyAll();
+		}
+
+		/**
+		 * Determines whether every band is done.
+		 *
+		 * @return true if every band is done
+		 */
+		synchronized boolean isDone() {
+			return this.remaining == 0;
+		}
+
+		/**
+		 * Gets why the run was aborted.
+		 *
+		 * @return the reason, or null
+		 */
+		synchronized String getAbortReason() {
+			return this.abortReason;
+		}
+	}
+
+	/**
+	 * Sends a band to a worker and waits for the result.
+	 *
+	 * @param band   the band
+	 * @param inputs the input images by their paths
+	 * @param out    the stream to the worker
+	 * @param in     the stream from the worker
+	 * @throws WorkerError       if the program failed on the worker
+	 * @throws WorkerOutOfMemory if the worker ran out of memory
+	 * @throws IOException       if the connection failed or timed out, or the
+	 *                           reply is malformed
+	 */
+	private void send(Band band, Map<String, FloatImage> inputs, DataOutputStream out, DataInputStream in)
+			throws IOException {
+		out.writeInt(this.args.length);
+		for(String arg : this.args) Worker.writeString(out, arg);
+		out.writeInt(inputs.size());
+		for(Map.Entry<String, FloatImage> e : inputs.entrySet()) {
+			Worker.writeString(out, e.getKey());
+			Worker.writeImage(out, e.getValue().getRows(band.y0, band.y1));
+		}
+		out.flush();
+
+		int status;
+		try {
+			status = in.readInt();
+		} catch(EOFException ex) {
+			throw new IOException("The worker closed the connection", ex);
+		}
+		if(status == Worker.STATUS_OUT_OF_MEMORY) throw new WorkerOutOfMemory(Worker.readString(in));
+		if(status != Worker.STATUS_OK) throw new WorkerError(Worker.readString(in));
+		band.messages = Worker.readString(in);
+		band.failedChecks = in.readInt();
+		band.outputs = new HashMap<>();
+		int nOutputs = in.readInt();
+		for(int i = 0; i < nOutputs; i++) {
+			String path = Worker.readString(in);
+			FloatImage im = Worker.readImage(in, path);
+			if(im.height != band.y1 - band.y0) throw new IOException("Wrong size of output " + path);
+			band.outputs.put(path, im);
+		}
+	}
+
+	/**
+	 * The failure of a program on a worker, which would fail the same way on
+	 * any other worker.
+	 */
+	private static class WorkerError extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		WorkerError(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * A worker running out of memory on a band, which another worker may
+	 * still manage. The connection stays usable.
+	 */
+	private static class WorkerOutOfMemory extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		WorkerOutOfMemory(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Starts a worker process on this machine, running the same ImgOp as this
+	 * process.
+	 *
+	 * @param processes the list to add the process to, so that it can be
+	 *                  stopped later
+	 * @return          the port the worker listens on
+	 * @throws IOException if the process could not be started
+	 */
+	static int spawnWorker(List<Process> processes) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+			ImgOp.class.getName(), "--worker", "0");
+		pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+		Process p = pb.start();
+		processes.add(p);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+		String line = reader.readLine();
+		if(line == null || !line.startsWith(Worker.READY)) throw new IOException("Worker process failed to start");
+		return Integer.parseInt(line.substring(Worker.READY.length()).trim());
+	}
+
+}
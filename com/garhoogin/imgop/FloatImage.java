@@ -3,34 +3,54 @@ package com.garhoogin.imgop;
 import java.awt.*;
 import java.awt.image.*;
 import java.awt.color.*;
+import java.util.*;
 
 /**
  * This class represents an image as separate red, green, blue, and alpha images
  * where each color channel is stored as a floating point, where valid color
  * values are in the range [0, 1] rather than [0, 255].
  *
+ * A channel that has the same value at every pixel, such as the alpha channel
+ * of an opaque image, is stored as that single value instead of a full plane.
+ * Operations keep such channels constant wherever the result is constant too.
+ *
+ * Channel planes are never modified once an image is created, so they are
+ * shared rather than copied: between the channels of a grayscale image,
+ * between an image and its copies, and between an operation's input and
+ * result for every channel the operation leaves unchanged.
+ *
  * @author Declan Moore
  */
 public class FloatImage {
 
-	private static BufferedImage createImage(int[] pixels, int width, int height){
-		int[] newBuffer = new int[pixels.length << 2];
-		for(int i = 0; i < pixels.length; i++){
-			int index = i << 2;
-			newBuffer[index + 0] = pixels[i] & 0xFF;
-			newBuffer[index + 1] = (pixels[i] >>> 8) & 0xFF;
-			newBuffer[index + 2] = (pixels[i] >>> 16) & 0xFF;
-			newBuffer[index + 3] = (pixels[i] >>> 24) & 0xFF;
-		}
+	/**
+	 * Create an 8-bit sRGB BufferedImage with interleaved samples.
+	 *
+	 * @param width    the image width
+	 * @param height   the image height
+	 * @param hasAlpha whether the image has an alpha channel
+	 * @return         the new image
+	 */
+	private static BufferedImage createImage(int width, int height, boolean hasAlpha) {
 		ColorSpace colorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
-		ColorModel colorModel = new ComponentColorModel(colorSpace, new int[]{8, 8, 8, 8}, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
-		//BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_CUSTOM);
-		BufferedImage bi = new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height), colorModel.isAlphaPremultiplied(), null);
-		WritableRaster raster = (WritableRaster) bi.getRaster();
-		raster.setPixels(0, 0, width, height, newBuffer);
-		return bi;
+		ColorModel colorModel;
+		if(hasAlpha) {
+			colorModel = new ComponentColorModel(colorSpace, new int[]{8, 8, 8, 8}, true, false, Transparency.TRANSLUCENT, DataBuffer.TYPE_BYTE);
+		} else {
+			colorModel = new ComponentColorModel(colorSpace, new int[]{8, 8, 8}, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		}
+		return new BufferedImage(colorModel, colorModel.createCompatibleWritableRaster(width, height), colorModel.isAlphaPremultiplied(), null);
 	}
 
+	/*
+	 * Operations applied channel by channel.
+	 */
+	static final int OP_ADD = 0;
+	static final int OP_SUB = 1;
+	static final int OP_MUL = 2;
+	static final int OP_DIV = 3;
+	static final int OP_POW = 4;
+
 	/**
 	 * The width of this image.
 	 */
@@ -42,46 +62,62 @@ public class FloatImage {
 	int height;
 
 	/**
-	 * The red image.
-	 */
-	float pxR[];
-
-	/**
-	 * The green image.
-	 */
-	float pxG[];
-
-	/**
-	 * The blue image.
+	 * The red, green, blue, and alpha images, in that order. An image is null
+	 * if its channel is constant.
 	 */
-	float pxB[];
+	float planes[][];
 
 	/**
-	 * The alpha image.
+	 * The value of each channel whose image is null.
 	 */
-	float pxA[];
+	float constants[];
 
 	/**
-	 * Create a FloatImage from a BufferedImage.
+	 * Create a FloatImage from a BufferedImage. Channels with the same value
+	 * at every pixel are detected and stored as constants.
 	 *
 	 * @param im the input BufferedImage
 	 */
 	public FloatImage(BufferedImage im) {
 		this.width = im.getWidth();
 		this.height = im.getHeight();
-		this.pxR = new float[this.width * this.height];
-		this.pxG = new float[this.width * this.height];
-		this.pxB = new float[this.width * this.height];
-		this.pxA = new float[this.width * this.height];
+		this.planes = new float[4][];
+		this.constants = new float[4];
+		int nPx = this.width * this.height;
+		boolean hasAlpha = im.getColorModel().hasAlpha();
 
-		int[] rgba = im.getRGB(0, 0, this.width, this.height, null, 0, this.width);
+		float pxR[] = new float[nPx];
+		float pxG[] = new float[nPx];
+		float pxB[] = new float[nPx];
+		float pxA[] = hasAlpha ? new float[nPx] : null;
+		int rgba[] = im.getRGB(0, 0, this.width, this.height, null, 0, this.width);
+		int first = nPx > 0 ? rgba[0] : 0;
+		int differ = 0; //bits set where some pixel differs from the first
+		int notGray = 0; //nonzero if some pixel has red, green, and blue differ
 		for(int i = 0; i < rgba.length; i++) {
 			int c = rgba[i];
-			this.pxR[i] = ((c >>> 16) & 0xFF) / 255.0f;
-			this.pxG[i] = ((c >>> 8) & 0xFF) / 255.0f;
-			this.pxB[i] = ((c >>> 0) & 0xFF) / 255.0f;
-			this.pxA[i] = ((c >>> 24) & 0xFF) / 255.0f;
+			differ |= c ^ first;
+			notGray |= (c ^ (c >>> 8)) & 0xFFFF;
+			pxR[i] = ((c >>> 16) & 0xFF) / 255.0f;
+			pxG[i] = ((c >>> 8) & 0xFF) / 255.0f;
+			pxB[i] = ((c >>> 0) & 0xFF) / 255.0f;
+			if(pxA != null) pxA[i] = ((c >>> 24) & 0xFF) / 255.0f;
 		}
+		if(notGray == 0) {
+			pxG = pxR;
+			pxB = pxR;
+		}
+
+		float px[][] = { pxR, pxG, pxB, pxA };
+		int shifts[] = { 16, 8, 0, 24 };
+		for(int c = 0; c < 4; c++) {
+			if(((differ >>> shifts[c]) & 0xFF) == 0) {
+				this.constants[c] = ((first >>> shifts[c]) & 0xFF) / 255.0f;
+			} else {
+				this.planes[c] = px[c];
+			}
+		}
+		if(!hasAlpha) this.constants[3] = 1.0f;
 	}
 
 	/**
@@ -94,13 +130,25 @@ public class FloatImage {
 	 * @param pxB    the blue image
 	 * @param pxA    the alpha image
 	 */
-	private FloatImage(int width, int height, float pxR[], float pxG[], float pxB[], float pxA[]) {
+	FloatImage(int width, int height, float pxR[], float pxG[], float pxB[], float pxA[]) {
+		this(width, height, new float[][] { pxR, pxG, pxB, pxA }, new float[4]);
+	}
+
+	/**
+	 * Create a FloatImage from dimensions, channel images, and the values of
+	 * constant channels.
+	 *
+	 * @param width     the image width
+	 * @param height    the image height
+	 * @param planes    the red, green, blue, and alpha images, null for
+	 *                  constant channels
+	 * @param constants the values of the constant channels
+	 */
+	FloatImage(int width, int height, float planes[][], float constants[]) {
 		this.width = width;
 		this.height = height;
-		this.pxR = pxR;
-		this.pxG = pxG;
-		this.pxB = pxB;
-		this.pxA = pxA;
+		this.planes = planes;
+		this.constants = constants;
 	}
 
 	/**
@@ -117,6 +165,50 @@ public class FloatImage {
 		return this.height;
 	}
 
+	/**
+	 * Determines whether a channel has the same value at every pixel.
+	 *
+	 * @param c the channel index, 0 to 3 for red, green, blue, and alpha
+	 * @return  true if the channel is stored as a constant
+	 */
+	boolean isConstant(int c) {
+		return this.planes[c] == null;
+	}
+
+	/**
+	 * Gets the image of a channel, filling a new one if the channel is
+	 * constant.
+	 *
+	 * @param c the channel index
+	 * @return  the channel's image
+	 */
+	float[] getPlane(int c) {
+		if(this.planes[c] != null) return this.planes[c];
+		float p[] = new float[this.width * this.height];
+		Arrays.fill(p, this.constants[c]);
+		return p;
+	}
+
+	/**
+	 * Replaces channels whose images hold the same value at every pixel with
+	 * constants.
+	 */
+	void detectConstants() {
+		for(int c = 0; c < 4; c++) {
+			float p[] = this.planes[c];
+			if(p == null || p.length == 0) continue;
+			int bits = Float.floatToRawIntBits(p[0]);
+			boolean uniform = true;
+			for(int i = 1; i < p.length && uniform; i++) {
+				uniform = Float.floatToRawIntBits(p[i]) == bits;
+			}
+			if(uniform) {
+				this.constants[c] = p[0];
+				this.planes[c] = null;
+			}
+		}
+	}
+
 	/**
 	 * Normalizes a pixel value from the range [0, 1] to the range [0, 255] and
 	 * rounds to the nearest integer value, clamping the result to the range
@@ -125,46 +217,387 @@ public class FloatImage {
 	 * @param f the number to normalize
 	 * @return  the input number normalized and clamped.
 	 */
-	private static int denormalize(float f) {
+	static int denormalize(float f) {
 		float f2 = f * 255.0f;
 		if(f2 < 0.0f) f2 = -f2;
-		else if(f2 > 255.0f) f2 = 255.0f;
+		if(f2 > 255.0f) f2 = 255.0f;
 		return (int) Math.floor(f2 + 0.5f);
 	}
 
 	/**
-	 * Convert the FloatImage back into a BufferedImage.
+	 * Determines whether this image needs an alpha channel when converted to
+	 * 8 bits, which it does unless alpha is constant and opaque.
+	 *
+	 * @return true if the alpha channel is kept
+	 */
+	boolean hasAlpha() {
+		return !this.isConstant(3) || denormalize(this.constants[3]) != 255;
+	}
+
+	/**
+	 * Convert the FloatImage back into a BufferedImage. If the alpha channel
+	 * is constant and opaque, the result has no alpha channel.
 	 *
 	 * @return this FloatImage approximated as a BufferedImage
 	 */
 	public BufferedImage getImage() {
-		int out[] = new int[this.width * this.height];
-		for(int i = 0; i < this.pxR.length; i++) {
-			float r = this.pxR[i];
-			float g = this.pxG[i];
-			float b = this.pxB[i];
-			float a = this.pxA[i];
-			int cc = denormalize(r) | (denormalize(g) << 8) | (denormalize(b) << 16) | (denormalize(a) << 24);
-			out[i] = cc;
+		boolean hasAlpha = this.hasAlpha();
+		int nChannels = hasAlpha ? 4 : 3;
+		BufferedImage bi = createImage(this.width, this.height, hasAlpha);
+		byte out[] = ((DataBufferByte) bi.getRaster().getDataBuffer()).getData();
+		int nPx = this.width * this.height;
+
+		for(int c = 0; c < nChannels; c++) {
+			float p[] = this.planes[c];
+			if(p == null) {
+				byte b = (byte) denormalize(this.constants[c]);
+				for(int i = 0; i < nPx; i++) {
+					out[i * nChannels + c] = b;
+				}
+			} else {
+				for(int i = 0; i < nPx; i++) {
+					out[i * nChannels + c] = (byte) denormalize(p[i]);
+				}
+			}
 		}
-		return createImage(out, this.width, this.height);
+		return bi;
 	}
 
 	/**
-	 * Creates a copy of this FloatImage.
+	 * Creates a copy of this FloatImage. The copy shares this image's planes,
+	 * since planes are never modified.
 	 *
 	 * @return a copy of this FloatImage
 	 */
 	public FloatImage copy() {
-		float pxR2[] = new float[this.pxR.length];
-		float pxG2[] = new float[this.pxG.length];
-		float pxB2[] = new float[this.pxB.length];
-		float pxA2[] = new float[this.pxA.length];
-		System.arraycopy(this.pxR, 0, pxR2, 0, this.pxR.length);
-		System.arraycopy(this.pxG, 0, pxG2, 0, this.pxG.length);
-		System.arraycopy(this.pxB, 0, pxB2, 0, this.pxB.length);
-		System.arraycopy(this.pxA, 0, pxA2, 0, this.pxA.length);
-		return new FloatImage(this.width, this.height, pxR2, pxG2, pxB2, pxA2);
+		return new FloatImage(this.width, this.height, this.planes.clone(), this.constants.clone());
+	}
+
+	/**
+	 * Copies a band of rows of this image.
+	 *
+	 * @param y0 the first row
+	 * @param y1 the row after the last row
+	 * @return   the band
+	 */
+	FloatImage getRows(int y0, int y1) {
+		float planes2[][] = new float[4][];
+		float none[] = new float[4];
+		for(int c = 0; c < 4; c++) {
+			if(this.planes[c] == null) continue;
+			int same = findEquivalent(this.planes, none, c);
+			if(same != -1) planes2[c] = planes2[same];
+			else planes2[c] = Arrays.copyOfRange(this.planes[c], y0 * this.width, y1 * this.width);
+		}
+		return new FloatImage(this.width, y1 - y0, planes2, this.constants.clone());
+	}
+
+	/**
+	 * Stacks bands of rows of the same width from top to bottom. A channel
+	 * stays constant if it is the same constant in every band, and a plane
+	 * stays shared between channels if it is shared in every band.
+	 *
+	 * @param bands the bands
+	 * @return      the stacked image
+	 */
+	static FloatImage stackRows(java.util.List<FloatImage> bands) {
+		FloatImage first = bands.get(0);
+		int width = first.width, height = 0;
+		for(FloatImage band : bands) height += band.height;
+
+		float planes2[][] = new float[4][];
+		float constants2[] = first.constants.clone();
+		for(int c = 0; c < 4; c++) {
+			int same = -1;
+			for(int p = 0; p < c && same == -1; p++) {
+				same = p;
+				for(FloatImage band : bands) {
+					if(band.planes[p] != band.planes[c]
+						|| Float.floatToRawIntBits(band.constants[p]) != Float.floatToRawIntBits(band.constants[c])) {
+						same = -1;
+						break;
+					}
+				}
+			}
+			if(same != -1) {
+				planes2[c] = planes2[same];
+				continue;
+			}
+
+			boolean constant = true;
+			for(FloatImage band : bands) {
+				if(band.planes[c] != null
+					|| Float.floatToRawIntBits(band.constants[c]) != Float.floatToRawIntBits(first.constants[c])) {
+					constant = false;
+					break;
+				}
+			}
+			if(constant) continue;
+
+			float p[] = planes2[c] = new float[width * height];
+			int pos = 0;
+			for(FloatImage band : bands) {
+				int size = band.width * band.height;
+				if(band.planes[c] == null) Arrays.fill(p, pos, pos + size, band.constants[c]);
+				else System.arraycopy(band.planes[c], 0, p, pos, size);
+				pos += size;
+			}
+		}
+		return new FloatImage(width, height, planes2, constants2);
+	}
+
+	/**
+	 * Determines whether applying an operation with a constant second operand
+	 * leaves the first operand unchanged.
+	 *
+	 * @param op the operation
+	 * @param k  the second operand
+	 * @return   true if the operation is the identity
+	 */
+	static boolean isIdentity(int op, float k) {
+		switch(op) {
+			case OP_ADD:
+			case OP_SUB:
+				return k == 0.0f;
+			default:
+				return k == 1.0f;
+		}
+	}
+
+	/**
+	 * Finds an earlier channel that an operation would give the same result
+	 * for, because it has the same plane and the same operand. This lets
+	 * grayscale images be processed once rather than three times.
+	 *
+	 * @param planes the planes of the image
+	 * @param k      the operand for each channel
+	 * @param c      the channel
+	 * @return       the index of an earlier equivalent channel, or -1
+	 */
+	private static int findEquivalent(float planes[][], float k[], int c) {
+		for(int p = 0; p < c; p++) {
+			if(planes[p] == planes[c] && Float.floatToRawIntBits(k[p]) == Float.floatToRawIntBits(k[c])) return p;
+		}
+		return -1;
+	}
+
+	/**
+	 * Applies an operation to two values.
+	 *
+	 * @param op the operation
+	 * @param x  the first operand
+	 * @param y  the second operand
+	 * @return   the result
+	 */
+	static float apply(int op, float x, float y) {
+		switch(op) {
+			case OP_ADD:
+				return x + y;
+			case OP_SUB:
+				return x - y;
+			case OP_MUL:
+				return x * y;
+			case OP_DIV:
+				return x / y;
+			default:
+				return (float) Math.pow(x, y);
+		}
+	}
+
+	/**
+	 * Applies an operation to a range of an image and a constant.
+	 *
+	 * @param op   the operation
+	 * @param a    the first operand image
+	 * @param aOff the offset of the range in the first operand
+	 * @param k    the second operand
+	 * @param dst  the destination image
+	 * @param dOff the offset of the range in the destination
+	 * @param n    the number of pixels
+	 */
+	static void apply(int op, float a[], int aOff, float k, float dst[], int dOff, int n) {
+		switch(op) {
+			case OP_ADD:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] + k;
+				break;
+			case OP_SUB:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] - k;
+				break;
+			case OP_MUL:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] * k;
+				break;
+			case OP_DIV:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] / k;
+				break;
+			default:
+				for(int i = 0; i < n; i++) dst[dOff + i] = (float) Math.pow(a[aOff + i], k);
+				break;
+		}
+	}
+
+	/**
+	 * Applies an operation to a constant and a range of an image.
+	 *
+	 * @param op   the operation
+	 * @param k    the first operand
+	 * @param b    the second operand image
+	 * @param bOff the offset of the range in the second operand
+	 * @param dst  the destination image
+	 * @param dOff the offset of the range in the destination
+	 * @param n    the number of pixels
+	 */
+	static void apply(int op, float k, float b[], int bOff, float dst[], int dOff, int n) {
+		switch(op) {
+			case OP_ADD:
+				for(int i = 0; i < n; i++) dst[dOff + i] = k + b[bOff + i];
+				break;
+			case OP_SUB:
+				for(int i = 0; i < n; i++) dst[dOff + i] = k - b[bOff + i];
+				break;
+			case OP_MUL:
+				for(int i = 0; i < n; i++) dst[dOff + i] = k * b[bOff + i];
+				break;
+			case OP_DIV:
+				for(int i = 0; i < n; i++) dst[dOff + i] = k / b[bOff + i];
+				break;
+			default:
+				for(int i = 0; i < n; i++) dst[dOff + i] = (float) Math.pow(k, b[bOff + i]);
+				break;
+		}
+	}
+
+	/**
+	 * Applies an operation to ranges of two images.
+	 *
+	 * @param op   the operation
+	 * @param a    the first operand image
+	 * @param aOff the offset of the range in the first operand
+	 * @param b    the second operand image
+	 * @param bOff the offset of the range in the second operand
+	 * @param dst  the destination image
+	 * @param dOff the offset of the range in the destination
+	 * @param n    the number of pixels
+	 */
+	static void apply(int op, float a[], int aOff, float b[], int bOff, float dst[], int dOff, int n) {
+		switch(op) {
+			case OP_ADD:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] + b[bOff + i];
+				break;
+			case OP_SUB:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] - b[bOff + i];
+				break;
+			case OP_MUL:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] * b[bOff + i];
+				break;
+			case OP_DIV:
+				for(int i = 0; i < n; i++) dst[dOff + i] = a[aOff + i] / b[bOff + i];
+				break;
+			default:
+				for(int i = 0; i < n; i++) dst[dOff + i] = (float) Math.pow(a[aOff + i], b[bOff + i]);
+				break;
+		}
+	}
+
+	/**
+	 * Applies an operation to every pixel of this image and a constant color.
+	 *
+	 * @param op the operation
+	 * @param k  the red, green, blue, and alpha operands
+	 * @return   the result of the operation
+	 */
+	private FloatImage apply(int op, float... k) {
+		float planes2[][] = new float[4][];
+		float constants2[] = new float[4];
+		int nPx = this.width * this.height;
+		for(int c = 0; c < 4; c++) {
+			int same;
+			if(this.planes[c] == null) {
+				constants2[c] = apply(op, this.constants[c], k[c]);
+			} else if(isIdentity(op, k[c])) {
+				planes2[c] = this.planes[c];
+			} else if((same = findEquivalent(this.planes, k, c)) != -1) {
+				planes2[c] = planes2[same];
+			} else {
+				planes2[c] = new float[nPx];
+				apply(op, this.planes[c], 0, k[c], planes2[c], 0, nPx);
+			}
+		}
+		return new FloatImage(this.width, this.height, planes2, constants2);
+	}
+
+	/**
+	 * Finds an earlier channel that an operation between this image and
+	 * another would give the same result for, because both images have the
+	 * same planes or constants in it.
+	 *
+	 * @param i2 the second operand image
+	 * @param c  the channel
+	 * @return   the index of an earlier equivalent channel, or -1
+	 */
+	private int findEquivalent(FloatImage i2, int c) {
+		for(int p = 0; p < c; p++) {
+			if(this.planes[p] != this.planes[c] || i2.planes[p] != i2.planes[c]) continue;
+			if(this.planes[c] == null && Float.floatToRawIntBits(this.constants[p]) != Float.floatToRawIntBits(this.constants[c])) continue;
+			if(i2.planes[c] == null && Float.floatToRawIntBits(i2.constants[p]) != Float.floatToRawIntBits(i2.constants[c])) continue;
+			return p;
+		}
+		return -1;
+	}
+
+	/**
+	 * Applies an operation to this image and another image, pixel by pixel.
+	 * The result has the size of this image. Where the images do not overlap,
+	 * the result takes this image's values.
+	 *
+	 * @param op the operation
+	 * @param i2 the second operand image
+	 * @return   the result of the operation
+	 */
+	private FloatImage apply(int op, FloatImage i2) {
+		float planes2[][] = new float[4][];
+		float constants2[] = new float[4];
+		int dw = Math.min(this.width, i2.width);
+		int dh = Math.min(this.height, i2.height);
+		boolean covered = dw == this.width && dh == this.height;
+
+		for(int c = 0; c < 4; c++) {
+			float a[] = this.planes[c];
+			float b[] = i2.planes[c];
+			float ka = this.constants[c];
+			float kb = i2.constants[c];
+			if(a == null && b == null && covered) {
+				constants2[c] = apply(op, ka, kb);
+				continue;
+			}
+			if(b == null && isIdentity(op, kb)) {
+				planes2[c] = a;
+				constants2[c] = ka;
+				continue;
+			}
+			int same = this.findEquivalent(i2, c);
+			if(same != -1) {
+				planes2[c] = planes2[same];
+				continue;
+			}
+
+			float dst[] = new float[this.width * this.height];
+			if(!covered) {
+				//start from this image's values and operate in place on the overlap
+				if(a != null) System.arraycopy(a, 0, dst, 0, dst.length);
+				else Arrays.fill(dst, ka);
+				a = dst;
+			}
+
+			for(int y = 0; y < dh; y++) {
+				int aOff = y * this.width;
+				int bOff = y * i2.width;
+				if(a == null) apply(op, ka, b, bOff, dst, aOff, dw);
+				else if(b == null) apply(op, a, aOff, kb, dst, aOff, dw);
+				else apply(op, a, aOff, b, bOff, dst, aOff, dw);
+			}
+			planes2[c] = dst;
+		}
+		return new FloatImage(this.width, this.height, planes2, constants2);
 	}
 
 	/**
@@ -174,19 +607,7 @@ public class FloatImage {
 	 * @return   the result of the color addition
 	 */
 	public FloatImage add(FloatImage i2) {
-		FloatImage i1 = this.copy();
-		int dw = Math.min(i1.width, i2.width);
-		int dh = Math.min(i1.height, i2.height);
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] += i2.pxR[i];
-				i1.pxG[i] += i2.pxG[i];
-				i1.pxB[i] += i2.pxB[i];
-				i1.pxA[i] += i2.pxA[i];
-			}
-		}
-		return i1;
+		return this.apply(OP_ADD, i2);
 	}
 
 	/**
@@ -200,19 +621,7 @@ public class FloatImage {
 	 *          color values of all its pixels.
 	 */
 	public FloatImage add(float r, float g, float b, float a) {
-		FloatImage i1 = this.copy();
-		int dw = i1.width;
-		int dh = i1.height;
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] += r;
-				i1.pxG[i] += g;
-				i1.pxB[i] += b;
-				i1.pxA[i] += a;
-			}
-		}
-		return i1;
+		return this.apply(OP_ADD, r, g, b, a);
 	}
 
 	/**
@@ -224,19 +633,7 @@ public class FloatImage {
 	 *           subtracted from it
 	 */
 	public FloatImage sub(FloatImage i2) {
-		FloatImage i1 = this.copy();
-		int dw = Math.min(i1.width, i2.width);
-		int dh = Math.min(i1.height, i2.height);
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] -= i2.pxR[i];
-				i1.pxG[i] -= i2.pxG[i];
-				i1.pxB[i] -= i2.pxB[i];
-				i1.pxA[i] -= i2.pxA[i];
-			}
-		}
-		return i1;
+		return this.apply(OP_SUB, i2);
 	}
 
 	/**
@@ -250,19 +647,7 @@ public class FloatImage {
 	 *          from every pixel of this image
 	 */
 	public FloatImage sub(float r, float g, float b, float a) {
-		FloatImage i1 = this.copy();
-		int dw = i1.width;
-		int dh = i1.height;
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] -= r;
-				i1.pxG[i] -= g;
-				i1.pxB[i] -= b;
-				i1.pxA[i] -= a;
-			}
-		}
-		return i1;
+		return this.apply(OP_SUB, r, g, b, a);
 	}
 
 	/**
@@ -274,19 +659,7 @@ public class FloatImage {
 	 *           the specified image.
 	 */
 	public FloatImage mul(FloatImage i2) {
-		FloatImage i1 = this.copy();
-		int dw = Math.min(i1.width, i2.width);
-		int dh = Math.min(i1.height, i2.height);
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] *= i2.pxR[i];
-				i1.pxG[i] *= i2.pxG[i];
-				i1.pxB[i] *= i2.pxB[i];
-				i1.pxA[i] *= i2.pxA[i];
-			}
-		}
-		return i1;
+		return this.apply(OP_MUL, i2);
 	}
 
 	/**
@@ -301,19 +674,7 @@ public class FloatImage {
 	 *          by those from the input color vector
 	 */
 	public FloatImage mul(float r, float g, float b, float a) {
-		FloatImage i1 = this.copy();
-		int dw = i1.width;
-		int dh = i1.height;
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] *= r;
-				i1.pxG[i] *= g;
-				i1.pxB[i] *= b;
-				i1.pxA[i] *= a;
-			}
-		}
-		return i1;
+		return this.apply(OP_MUL, r, g, b, a);
 	}
 
 	/**
@@ -324,19 +685,7 @@ public class FloatImage {
 	 *           the specified image.
 	 */
 	public FloatImage div(FloatImage i2) {
-		FloatImage i1 = this.copy();
-		int dw = Math.min(i1.width, i2.width);
-		int dh = Math.min(i1.height, i2.height);
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] /= i2.pxR[i];
-				i1.pxG[i] /= i2.pxG[i];
-				i1.pxB[i] /= i2.pxB[i];
-				i1.pxA[i] /= i2.pxA[i];
-			}
-		}
-		return i1;
+		return this.apply(OP_DIV, i2);
 	}
 
 	/**
@@ -350,19 +699,7 @@ public class FloatImage {
 	 *          specified values.
 	 */
 	public FloatImage div(float r, float g, float b, float a) {
-		FloatImage i1 = this.copy();
-		int dw = i1.width;
-		int dh = i1.height;
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] /= r;
-				i1.pxG[i] /= g;
-				i1.pxB[i] /= b;
-				i1.pxA[i] /= a;
-			}
-		}
-		return i1;
+		return this.apply(OP_DIV, r, g, b, a);
 	}
 
 	/**
@@ -374,19 +711,7 @@ public class FloatImage {
 	 *           the color values of another image.
 	 */
 	public FloatImage pow(FloatImage i2) {
-		FloatImage i1 = this.copy();
-		int dw = Math.min(i1.width, i2.width);
-		int dh = Math.min(i1.height, i2.height);
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] = (float) Math.pow(i1.pxR[i], i2.pxR[i]);
-				i1.pxG[i] = (float) Math.pow(i1.pxG[i], i2.pxG[i]);
-				i1.pxB[i] = (float) Math.pow(i1.pxB[i], i2.pxB[i]);
-				i1.pxA[i] = (float) Math.pow(i1.pxA[i], i2.pxA[i]);
-			}
-		}
-		return i1;
+		return this.apply(OP_POW, i2);
 	}
 
 	/**
@@ -401,23 +726,12 @@ public class FloatImage {
 	 *          the given values.
 	 */
 	public FloatImage pow(float r, float g, float b, float a) {
-		FloatImage i1 = this.copy();
-		int dw = i1.width;
-		int dh = i1.height;
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] = (float) Math.pow(i1.pxR[i], r);
-				i1.pxG[i] = (float) Math.pow(i1.pxG[i], g);
-				i1.pxB[i] = (float) Math.pow(i1.pxB[i], b);
-				i1.pxA[i] = (float) Math.pow(i1.pxA[i], a);
-			}
-		}
-		return i1;
+		return this.apply(OP_POW, r, g, b, a);
 	}
 
 	/**
 	 * Performs a linear transform on this image's RGBA values by a 4x4 matrix.
+	 * An output channel is constant if every input channel it depends on is.
 	 *
 	 * @param a element 1,1 of the matrix
 	 * @param b element 1,2 of the matrix
@@ -442,30 +756,62 @@ public class FloatImage {
 			float e, float f, float g, float h,
 			float i, float j, float k, float l,
 			float m, float n, float o, float p) {
-		FloatImage i1 = this.copy();
-		int dw = i1.width;
-		int dh = i1.height;
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int si = y * i1.width + x;
-				float cr = i1.pxR[si];
-				float cg = i1.pxG[si];
-				float cb = i1.pxB[si];
-				float ca = i1.pxA[si];
-
-				//apply linear transform
-				i1.pxR[si] = cr * a + cg * b + cb * c + ca * d;
-				i1.pxG[si] = cr * e + cg * f + cb * g + ca * h;
-				i1.pxB[si] = cr * i + cg * j + cb * k + ca * l;
-				i1.pxA[si] = cr * m + cg * n + cb * o + ca * p;
+		float mtx[] = { a, b, c, d, e, f, g, h, i, j, k, l, m, n, o, p };
+		float pxR[] = this.planes[0], pxG[] = this.planes[1], pxB[] = this.planes[2], pxA[] = this.planes[3];
+		float kr = this.constants[0], kg = this.constants[1], kb = this.constants[2], ka = this.constants[3];
+		int nPx = this.width * this.height;
+
+		float planes2[][] = new float[4][];
+		float constants2[] = new float[4];
+		float out[][] = new float[4][]; //planes that need to be computed
+		rows:
+		for(int row = 0; row < 4; row++) {
+			boolean constant = true;
+			int selected = -1; //the channel this row copies, if any
+			for(int col = 0; col < 4; col++) {
+				float coef = mtx[row * 4 + col];
+				if(coef != 0.0f && this.planes[col] != null) constant = false;
+				if(coef == 1.0f && selected == -1) selected = col;
+				else if(coef != 0.0f) selected = -2;
 			}
+			if(constant) {
+				constants2[row] = kr * mtx[row * 4] + kg * mtx[row * 4 + 1] + kb * mtx[row * 4 + 2] + ka * mtx[row * 4 + 3];
+				continue;
+			}
+			if(selected >= 0) {
+				planes2[row] = this.planes[selected];
+				continue;
+			}
+			for(int prev = 0; prev < row; prev++) {
+				if(out[prev] != null && Arrays.equals(Arrays.copyOfRange(mtx, prev * 4, prev * 4 + 4),
+						Arrays.copyOfRange(mtx, row * 4, row * 4 + 4))) {
+					planes2[row] = out[prev];
+					continue rows;
+				}
+			}
+			out[row] = planes2[row] = new float[nPx];
 		}
-		return i1;
+
+		float outR[] = out[0], outG[] = out[1], outB[] = out[2], outA[] = out[3];
+		for(int si = 0; si < nPx; si++) {
+			float cr = pxR != null ? pxR[si] : kr;
+			float cg = pxG != null ? pxG[si] : kg;
+			float cb = pxB != null ? pxB[si] : kb;
+			float ca = pxA != null ? pxA[si] : ka;
+
+			//apply linear transform
+			if(outR != null) outR[si] = cr * a + cg * b + cb * c + ca * d;
+			if(outG != null) outG[si] = cr * e + cg * f + cb * g + ca * h;
+			if(outB != null) outB[si] = cr * i + cg * j + cb * k + ca * l;
+			if(outA != null) outA[si] = cr * m + cg * n + cb * o + ca * p;
+		}
+		return new FloatImage(this.width, this.height, planes2, constants2);
 	}
 
 	/**
 	 * Clamps this image's color values to the specified ranges in red, green,
-	 * blue, and alpha.
+	 * blue, and alpha. Channels with infinite bounds on both sides are left
+	 * unchanged.
 	 *
 	 * @param minR the minimum red value
 	 * @param maxR the maximum red value
@@ -479,19 +825,300 @@ public class FloatImage {
 	 *             ranges.
 	 */
 	public FloatImage clamp(float minR, float maxR, float minG, float maxG, float minB, float maxB, float minA, float maxA) {
-		FloatImage i1 = this.copy();
-		int dw = i1.width;
-		int dh = i1.height;
-		for(int y = 0; y < dh; y++) {
-			for(int x = 0; x < dw; x++) {
-				int i = y * i1.width + x;
-				i1.pxR[i] = (float) Math.min(Math.max(i1.pxR[i], minR), maxR);
-				i1.pxG[i] = (float) Math.min(Math.max(i1.pxG[i], minG), maxG);
-				i1.pxB[i] = (float) Math.min(Math.max(i1.pxB[i], minB), maxB);
-				i1.pxA[i] = (float) Math.min(Math.max(i1.pxA[i], minA), maxA);
+		float min[] = { minR, minG, minB, minA };
+		float max[] = { maxR, maxG, maxB, maxA };
+		float planes2[][] = new float[4][];
+		float constants2[] = new float[4];
+		int nPx = this.width * this.height;
+		for(int c = 0; c < 4; c++) {
+			float lo = min[c], hi = max[c];
+			float src[] = this.planes[c];
+			if(src == null) {
+				constants2[c] = Math.min(Math.max(this.constants[c], lo), hi);
+				continue;
+			}
+			//bounds of the largest finite floats only change infinities
+			if(lo <= -Float.MAX_VALUE && hi >= Float.MAX_VALUE
+				&& (lo == Float.NEGATIVE_INFINITY || !contains(src, Float.NEGATIVE_INFINITY))
+				&& (hi == Float.POSITIVE_INFINITY || !contains(src, Float.POSITIVE_INFINITY))) {
+				planes2[c] = src;
+				continue;
+			}
+			int same = findEquivalent(this.planes, min, c);
+			if(same != -1 && Float.floatToRawIntBits(max[same]) == Float.floatToRawIntBits(hi)) {
+				planes2[c] = planes2[same];
+				continue;
+			}
+			float dst[] = new float[nPx];
+			for(int i = 0; i < nPx; i++) {
+				dst[i] = Math.min(Math.max(src[i], lo), hi);
+			}
+			planes2[c] = dst;
+		}
+		return new FloatImage(this.width, this.height, planes2, constants2);
+	}
+
+	/**
+	 * Determines whether a plane holds a value.
+	 *
+	 * @param p the plane
+	 * @param f the value, not NaN
+	 * @return  true if any pixel is the value
+	 */
+	private static boolean contains(float p[], float f) {
+		for(float v : p) {
+			if(v == f) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The number of pixels below which {@link #gather} stops splitting a
+	 * block, small enough that the source rows a block reads from stay in
+	 * the cache.
+	 */
+	private static final int GATHER_BLOCK = 256;
+
+	/**
+	 * Flips, rotates, or transposes this image. Quarter turns and the
+	 * transpose read the source in small blocks so that large images do not
+	 * thrash the cache, and constant channels are left constant.
+	 *
+	 * @param o the orientation
+	 * @return  the reoriented image
+	 */
+	public FloatImage reorient(Orientation o) {
+		final int w2 = o.swapsAxes() ? this.height : this.width;
+		int h2 = o.swapsAxes() ? this.width : this.height;
+		final int map[] = o.getMapping(this.width, this.height);
+		float planes2[][] = new float[4][];
+		float none[] = new float[4];
+		for(int c = 0; c < 4; c++) {
+			if(this.planes[c] == null) continue;
+			int same = findEquivalent(this.planes, none, c);
+			if(same != -1) {
+				planes2[c] = planes2[same];
+				continue;
+			}
+
+			final float src[] = this.planes[c];
+			final float dst[] = planes2[c] = new float[w2 * h2];
+			Parallel.forEachBand(h2, new Parallel.Band() {
+				@Override
+				public void run(int band, int y0, int y1) {
+					gather(src, map, dst, 0, w2, 0, w2, y0, y1);
+				}
+			});
+		}
+		return new FloatImage(w2, h2, planes2, this.constants.clone());
+	}
+
+	/**
+	 * Copies a rectangle of a reoriented plane from its source. When rows of
+	 * the result are columns of the source, the rectangle is split in half
+	 * along its longer side until it is small, so the source is read a block
+	 * at a time whatever the size of the cache.
+	 *
+	 * @param src     the source plane
+	 * @param map     the mapping from {@link Orientation#getMapping}
+	 * @param dst     the destination plane
+	 * @param dOff    the index in the destination of pixel (0, 0)
+	 * @param dStride the distance in the destination between rows
+	 * @param x0      the first column of the rectangle
+	 * @param x1      the column after the last column of the rectangle
+	 * @param y0      the first row of the rectangle
+	 * @param y1      the row after the last row of the rectangle
+	 */
+	static void gather(float src[], int map[], float dst[], int dOff, int dStride, int x0, int x1, int y0, int y1) {
+		int base = map[0], dx = map[1], dy = map[2];
+		if(dx == 1) {
+			for(int y = y0; y < y1; y++) {
+				System.arraycopy(src, base + x0 + y * dy, dst, dOff + y * dStride + x0, x1 - x0);
+			}
+			return;
+		}
+		if(dx == -1 || (x1 - x0) * (y1 - y0) <= GATHER_BLOCK) {
+			for(int y = y0; y < y1; y++) {
+				int si = base + x0 * dx + y * dy;
+				int di = dOff + y * dStride;
+				for(int x = x0; x < x1; x++, si += dx) dst[di + x] = src[si];
 			}
+			return;
+		}
+		if(x1 - x0 >= y1 - y0) {
+			int xm = (x0 + x1) >>> 1;
+			gather(src, map, dst, dOff, dStride, x0, xm, y0, y1);
+			gather(src, map, dst, dOff, dStride, xm, x1, y0, y1);
+		} else {
+			int ym = (y0 + y1) >>> 1;
+			gather(src, map, dst, dOff, dStride, x0, x1, y0, ym);
+			gather(src, map, dst, dOff, dStride, x0, x1, ym, y1);
 		}
-		return i1;
+	}
+
+	/**
+	 * Blends a destination color with a source color for one of the blending
+	 * modes.
+	 *
+	 * @param mode the blend mode
+	 * @param cd   the destination color
+	 * @param cs   the source color
+	 * @return     the blended color
+	 */
+	private static float blend(BlendMode mode, float cd, float cs) {
+		switch(mode) {
+			case MULTIPLY:
+				return cd * cs;
+			case SCREEN:
+				return cd + cs - cd * cs;
+			default: //overlay
+				if(cd <= 0.5f) return 2.0f * cs * cd;
+				float cd2 = 2.0f * cd - 1.0f;
+				return cs + cd2 - cs * cd2;
+		}
+	}
+
+	/**
+	 * Composites another image onto this one in a single pass. The source
+	 * image is placed with its top left corner at the given position, which
+	 * may be negative or leave part of the source outside this image. The
+	 * result has the size of this image; outside the source, the source is
+	 * treated as fully transparent. Colors are not premultiplied.
+	 *
+	 * @param src  the source image
+	 * @param mode the compositing operator or blend mode
+	 * @param ox   the x position of the source in this image
+	 * @param oy   the y position of the source in this image
+	 * @return     the composited image
+	 */
+	public FloatImage composite(final FloatImage src, final BlendMode mode, final int ox, final int oy) {
+		final int w = this.width;
+		final int nPx = w * this.height;
+		final float d[][] = this.planes, s[][] = src.planes;
+		final float kd[] = this.constants, ks[] = src.constants;
+
+		//columns of this image covered by the source
+		final int x0 = (int) Math.max(0, Math.min(w, (long) ox));
+		final int x1 = (int) Math.max(x0, Math.min(w, (long) ox + src.width));
+
+		//the Porter-Duff fractions of source and destination are fa + faD * ad and fb + fbS * as
+		float f[];
+		switch(mode) {
+			case OVER:  f = new float[] { 1, 0, 1, -1 }; break;
+			case IN:    f = new float[] { 0, 1, 0, 0 }; break;
+			case OUT:   f = new float[] { 1, -1, 0, 0 }; break;
+			case ATOP:  f = new float[] { 0, 1, 1, -1 }; break;
+			case XOR:   f = new float[] { 1, -1, 1, -1 }; break;
+			case PLUS:  f = new float[] { 1, 0, 1, 0 }; break;
+			default:    f = new float[] { 1, -1, 1, -1 }; break; //blending modes
+		}
+		final float fa = f[0], faD = f[1], fb = f[2], fbS = f[3];
+
+		//a channel is constant if it is constant both where the source is and
+		//where it is not, and the two values are the same
+		long top = Math.max(0, Math.min(this.height, (long) oy));
+		long bottom = Math.max(top, Math.min(this.height, (long) oy + src.height));
+		boolean anyInside = x0 < x1 && top < bottom;
+		boolean allInside = x0 == 0 && x1 == w && top == 0 && bottom == this.height;
+		boolean alphaConstant = d[3] == null && s[3] == null;
+		float inside[] = new float[4];
+		if(alphaConstant) compositePixel(mode, fa, faD, fb, fbS, kd, ks, kd[3], ks[3], inside);
+		final float out[][] = new float[4][];
+		float constants2[] = new float[4];
+		for(int c = 0; c < 4; c++) {
+			boolean insideConstant = alphaConstant && (c == 3 || (d[c] == null && s[c] == null));
+			boolean outsideConstant = !mode.keepsDestination() || d[c] == null;
+			float outside = mode.keepsDestination() ? kd[c] : 0.0f;
+			boolean constant = (!anyInside || insideConstant) && (allInside || outsideConstant)
+				&& (!anyInside || allInside || Float.floatToRawIntBits(inside[c]) == Float.floatToRawIntBits(outside));
+			if(constant) constants2[c] = anyInside ? inside[c] : outside;
+			else out[c] = new float[nPx];
+		}
+
+		Parallel.forEachBand(this.height, new Parallel.Band() {
+			@Override
+			public void run(int band, int y0, int y1) {
+				float cs[] = new float[3], cd[] = new float[3], px[] = new float[4];
+				for(int y = y0; y < y1; y++) {
+					int row = y * w;
+					int sy = y - oy;
+					boolean inside = sy >= 0 && sy < src.height && x0 < x1;
+					int xa = inside ? x0 : w, xb = inside ? x1 : w;
+
+					//outside the source, the result is the destination or nothing
+					if(mode.keepsDestination()) {
+						for(int c = 0; c < 4; c++) {
+							if(out[c] == null) continue;
+							copyRange(d[c], kd[c], row, out[c], row, xa);
+							copyRange(d[c], kd[c], row + xb, out[c], row + xb, w - xb);
+						}
+					}
+
+					for(int x = xa; x < xb; x++) {
+						int di = row + x;
+						int si = sy * src.width + (x - ox);
+						for(int c = 0; c < 3; c++) {
+							cd[c] = d[c] != null ? d[c][di] : kd[c];
+							cs[c] = s[c] != null ? s[c][si] : ks[c];
+						}
+						float ad = d[3] != null ? d[3][di] : kd[3];
+						float as = s[3] != null ? s[3][si] : ks[3];
+						compositePixel(mode, fa, faD, fb, fbS, cd, cs, ad, as, px);
+						for(int c = 0; c < 4; c++) {
+							if(out[c] != null) out[c][di] = px[c];
+						}
+					}
+				}
+			}
+		});
+		return new FloatImage(this.width, this.height, out, constants2);
+	}
+
+	/**
+	 * Composites one source pixel onto one destination pixel.
+	 *
+	 * @param mode the compositing operator or blend mode
+	 * @param fa   the source fraction's constant term
+	 * @param faD  the source fraction's destination alpha term
+	 * @param fb   the destination fraction's constant term
+	 * @param fbS  the destination fraction's source alpha term
+	 * @param cd   the destination color
+	 * @param cs   the source color
+	 * @param ad   the destination alpha
+	 * @param as   the source alpha
+	 * @param px   the color and alpha of the result
+	 */
+	private static void compositePixel(BlendMode mode, float fa, float faD, float fb, float fbS,
+			float cd[], float cs[], float ad, float as, float px[]) {
+		boolean isBlend = mode.isBlend();
+		float wa = (fa + faD * ad) * as;
+		float wb = (fb + fbS * as) * ad;
+		float wab = isBlend ? as * ad : 0.0f;
+		float ao = wa + wb + wab;
+		if(mode == BlendMode.PLUS) ao = Math.min(ao, 1.0f);
+
+		for(int c = 0; c < 3; c++) {
+			float cp = wa * cs[c] + wb * cd[c];
+			if(isBlend) cp += wab * blend(mode, cd[c], cs[c]);
+			if(mode == BlendMode.PLUS) cp = Math.min(cp, 1.0f);
+			px[c] = ao > 0.0f ? cp / ao : 0.0f;
+		}
+		px[3] = ao;
+	}
+
+	/**
+	 * Copies a range of a channel into a plane.
+	 *
+	 * @param src  the channel's plane, or null if it is constant
+	 * @param k    the channel's constant value
+	 * @param sOff the offset of the range in the channel
+	 * @param dst  the destination plane
+	 * @param dOff the offset of the range in the destination
+	 * @param n    the number of pixels
+	 */
+	private static void copyRange(float src[], float k, int sOff, float dst[], int dOff, int n) {
+		if(src != null) System.arraycopy(src, sOff, dst, dOff, n);
+		else Arrays.fill(dst, dOff, dOff + n, k);
 	}
 
 }
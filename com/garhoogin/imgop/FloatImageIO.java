@@ -0,0 +1,841 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.awt.image.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+/**
+ * This class reads and writes FloatImages. Besides the formats supported by
+ * ImageIO, two lossless floating point formats are supported so that the
+ * results of one run can be fed into another without losing precision:
+ *
+ * <ul>
+ * <li><b>FPI</b> (<code>.fpi</code>) a planar format consisting of a 16 byte
+ *     header followed by the red, green, blue, and alpha planes stored as
+ *     little endian 32-bit floats. The planes are laid out exactly as a
+ *     FloatImage stores them, so no per-pixel conversion is needed.</li>
+ * <li><b>PFM</b> (<code>.pfm</code>) the portable float map format, for
+ *     interchange with other tools. PFM has no alpha channel, so alpha is read
+ *     as 1 and discarded on write.</li>
+ * </ul>
+ *
+ * Both float formats are accessed through memory mapped files. PNG files are
+ * written by {@link PngWriter}, which compresses on all threads.
+ *
+ * The path <code>-</code> stands for standard input or output. Images read
+ * from standard input may be in any of these formats, which is detected from
+ * the data, and any number of images may be read one after another. Images
+ * written to standard output are PNG unless an extension is given, as in
+ * <code>-.fpi</code>.
+ *
+ * Images can also be read subsampled, keeping every Nth pixel of every Nth
+ * row, for quick previews. Subsampled images are decoded directly at the
+ * reduced size without ever holding the full image in memory.
+ */
+public class FloatImageIO {
+
+	/**
+	 * The magic number at the start of an FPI file ("FPI1").
+	 */
+	static final int FPI_MAGIC = 0x31495046;
+
+	/**
+	 * The size of an FPI file header in bytes.
+	 */
+	static final int FPI_HEADER_SIZE = 16;
+
+	/**
+	 * The buffer size used when writing to streams.
+	 */
+	private static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * The largest part of a file mapped at once. A single mapping cannot be
+	 * larger than 2 GiB, which is a plane of only 134 megapixels in FPI.
+	 */
+	private static final int MAP_WINDOW = 1 << 30;
+
+	/**
+	 * The largest PFM header read from a file.
+	 */
+	private static final int PFM_HEADER_LIMIT = 4096;
+
+	/**
+	 * Floats that can be read at any position, from a buffer or a file.
+	 */
+	private interface FloatSource {
+
+		/**
+		 * Reads consecutive floats.
+		 *
+		 * @param index the index of the first float
+		 * @param dst   the array to read into
+		 * @param off   the index in the array of the first float
+		 * @param n     the number of floats
+		 * @throws IOException if the floats could not be read
+		 */
+		void read(long index, float dst[], int off, int n) throws IOException;
+	}
+
+	/**
+	 * The floats of a file after its header, accessed through memory mapped
+	 * windows of at most {@link #MAP_WINDOW} bytes.
+	 */
+	private static class MappedFloats implements FloatSource {
+
+		/**
+		 * The file.
+		 */
+		private final FileChannel ch;
+
+		/**
+		 * How the file is mapped.
+		 */
+		private final FileChannel.MapMode mode;
+
+		/**
+		 * The position of the first float in the file.
+		 */
+		private final long base;
+
+		/**
+		 * The position in the file after the last float.
+		 */
+		private final long end;
+
+		/**
+		 * The byte order of the floats.
+		 */
+		private final ByteOrder order;
+
+		/**
+		 * The part of the file mapped now, or null.
+		 */
+		private MappedByteBuffer window;
+
+		/**
+		 * The position of the window in the file.
+		 */
+		private long windowStart;
+
+		MappedFloats(FileChannel ch, FileChannel.MapMode mode, long base, long end, ByteOrder order) {
+			this.ch = ch;
+			this.mode = mode;
+			this.base = base;
+			this.end = end;
+			this.order = order;
+		}
+
+		/**
+		 * Gets a buffer of floats in the file, mapping a new window if they
+		 * are not in the current one.
+		 *
+		 * @param index the index of the first float
+		 * @param n     the number of floats, at most a window's worth
+		 * @return      the floats
+		 * @throws IOException if the file could not be mapped
+		 */
+		private FloatBuffer map(long index, int n) throws IOException {
+			long pos = this.base + index * 4, length = n * 4L;
+			if(this.window == null || pos < this.windowStart || pos + length > this.windowStart + this.window.capacity()) {
+				this.window = this.ch.map(this.mode, pos, Math.min(MAP_WINDOW, this.end - pos));
+				this.windowStart = pos;
+			}
+			ByteBuffer buf = this.window.duplicate();
+			buf.position((int) (pos - this.windowStart));
+			buf.limit((int) (pos - this.windowStart + length));
+			return buf.slice().order(this.order).asFloatBuffer();
+		}
+
+		@Override
+		public void read(long index, float dst[], int off, int n) throws IOException {
+			while(n > 0) {
+				int len = Math.min(n, MAP_WINDOW / 4);
+				this.map(index, len).get(dst, off, len);
+				index += len;
+				off += len;
+				n -= len;
+			}
+		}
+
+		/**
+		 * Writes consecutive floats.
+		 *
+		 * @param index the index of the first float
+		 * @param src   the floats, or null to write a constant
+		 * @param k     the constant to write if src is null
+		 * @param off   the index in the array of the first float
+		 * @param n     the number of floats
+		 * @throws IOException if the file could not be mapped
+		 */
+		void write(long index, float src[], float k, int off, int n) throws IOException {
+			while(n > 0) {
+				int len = Math.min(n, MAP_WINDOW / 4);
+				FloatBuffer fb = this.map(index, len);
+				if(src != null) fb.put(src, off, len);
+				else putConstant(fb, k, len);
+				index += len;
+				off += len;
+				n -= len;
+			}
+		}
+	}
+
+	/**
+	 * Gets the floats of a buffer as a source.
+	 *
+	 * @param fb the floats
+	 * @return   the source
+	 */
+	private static FloatSource getSource(final FloatBuffer fb) {
+		return new FloatSource() {
+			@Override
+			public void read(long index, float dst[], int off, int n) {
+				fb.position((int) index);
+				fb.get(dst, off, n);
+			}
+		};
+	}
+
+	private FloatImageIO() {
+	}
+
+	/**
+	 * Determines whether a path refers to standard input or output rather
+	 * than a file.
+	 *
+	 * @param path the path
+	 * @return     true for <code>-</code>, with or without an extension
+	 */
+	static boolean isStream(String path) {
+		return path.equals("-") || path.startsWith("-.");
+	}
+
+	/**
+	 * Gets the lowercase extension of a file name, or an empty string if it
+	 * has none.
+	 *
+	 * @param f the file
+	 * @return  the file's extension without the dot
+	 */
+	static String getExtension(File f) {
+		String name = f.getName();
+		int dot = name.lastIndexOf('.');
+		if(dot == -1) return "";
+		return name.substring(dot + 1).toLowerCase();
+	}
+
+	/**
+	 * Gets the format an image written to a file will be stored in.
+	 *
+	 * @param f the file
+	 * @return  "fpi", "pfm", or "png"
+	 */
+	static String getOutputFormat(File f) {
+		String ext = getExtension(f);
+		if(ext.equals("fpi") || ext.equals("pfm")) return ext;
+		return "png";
+	}
+
+	/**
+	 * Read an image from a file. The format is chosen by the file extension.
+	 *
+	 * @param f the file to read
+	 * @return  the image read
+	 * @throws IOException if the file could not be read or is not an image
+	 */
+	public static FloatImage read(File f) throws IOException {
+		return read(f, 1);
+	}
+
+	/**
+	 * Read an image from a file, keeping only every Nth pixel of every Nth
+	 * row. The format is chosen by the file extension.
+	 *
+	 * @param f    the file to read
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @return     the image read
+	 * @throws IOException if the file could not be read or is not an image
+	 */
+	public static FloatImage read(File f, int step) throws IOException {
+		String ext = getExtension(f);
+		if(ext.equals("fpi")) return readFpi(f, step);
+		if(ext.equals("pfm")) return readPfm(f, step);
+
+		if(step == 1) {
+			BufferedImage im = ImageIO.read(f);
+			if(im == null) throw new IOException("Unsupported image format: " + f.getPath());
+			return new FloatImage(im);
+		}
+
+		if(!f.canRead()) throw new IOException("Can't read input file: " + f.getPath());
+		try(ImageInputStream in = ImageIO.createImageInputStream(f)) {
+			return decode(in, step, f.getPath());
+		}
+	}
+
+	/**
+	 * Decode the first image of a stream with ImageIO, keeping only every Nth
+	 * pixel of every Nth row.
+	 *
+	 * @param in   the stream
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @param name the name of the stream for error messages
+	 * @return     the image read
+	 * @throws IOException if the stream could not be read or is not an image
+	 */
+	static FloatImage decode(ImageInputStream in, int step, String name) throws IOException {
+		Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+		if(readers == null || !readers.hasNext()) {
+			throw new IOException("Unsupported image format: " + name);
+		}
+		ImageReader reader = readers.next();
+		try {
+			//the reader skips the rows and columns that are not kept as it decodes
+			reader.setInput(in, true, true);
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceSubsampling(step, step, 0, 0);
+			return new FloatImage(reader.read(0, param));
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Gets the size of one dimension of an image after subsampling.
+	 *
+	 * @param size the size of the full image
+	 * @param step the subsampling factor
+	 * @return     the size of the subsampled image
+	 */
+	private static int getSubsampledSize(int size, int step) {
+		return (int) (((long) size + step - 1) / step);
+	}
+
+	/**
+	 * Write an image to a file. FPI and PFM files are chosen by the file
+	 * extension, anything else is written as PNG at the default level.
+	 *
+	 * @param im the image to write
+	 * @param f  the destination file
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(FloatImage im, File f) throws IOException {
+		write(im, f, PngWriter.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Write an image to a file. FPI and PFM files are chosen by the file
+	 * extension, anything else is written as PNG.
+	 *
+	 * @param im       the image to write
+	 * @param f        the destination file
+	 * @param pngLevel the compression level of a PNG file, from 0 to 9
+	 * @throws IOException if the file could not be written
+	 */
+	public static void write(FloatImage im, File f, int pngLevel) throws IOException {
+		String format = getOutputFormat(f);
+		if(format.equals("fpi")) {
+			writeFpi(im, f);
+		} else if(format.equals("pfm")) {
+			writePfm(im, f);
+		} else {
+			try(OutputStream out = new BufferedOutputStream(new FileOutputStream(f), STREAM_BUFFER_SIZE)) {
+				PngWriter.write(im, out, pngLevel);
+			}
+		}
+	}
+
+	/**
+	 * Read an FPI file.
+	 *
+	 * @param f the file to read
+	 * @return  the image read
+	 * @throws IOException if the file could not be read or is malformed
+	 */
+	public static FloatImage readFpi(File f) throws IOException {
+		return readFpi(f, 1);
+	}
+
+	/**
+	 * Gets the number of pixels of an FPI or PFM file from its header,
+	 * without reading the pixels.
+	 *
+	 * @param f the file
+	 * @return  the number of pixels
+	 * @throws IOException if the file could not be read or is malformed
+	 */
+	static long getPixelCount(File f) throws IOException {
+		try(FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			if(getExtension(f).equals("fpi")) {
+				if(ch.size() < FPI_HEADER_SIZE) throw new IOException("Truncated FPI file: " + f.getPath());
+				return getFpiDataSize(ch.map(FileChannel.MapMode.READ_ONLY, 0, FPI_HEADER_SIZE), f.getPath()) / 16;
+			}
+			PfmHeader h = new PfmHeader(ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(ch.size(), PFM_HEADER_LIMIT)), f.getPath());
+			return (long) h.width * h.height;
+		}
+	}
+
+	/**
+	 * Read an FPI file, keeping only every Nth pixel of every Nth row.
+	 *
+	 * @param f    the file to read
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @return     the image read
+	 * @throws IOException if the file could not be read or is malformed
+	 */
+	public static FloatImage readFpi(File f, int step) throws IOException {
+		try(FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			if(size < FPI_HEADER_SIZE) throw new IOException("Truncated FPI file: " + f.getPath());
+			ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, FPI_HEADER_SIZE);
+			if(size < FPI_HEADER_SIZE + getFpiDataSize(header, f.getPath())) {
+				throw new IOException("Truncated FPI file: " + f.getPath());
+			}
+			return decodeFpi(header.getInt(4), header.getInt(8),
+				new MappedFloats(ch, FileChannel.MapMode.READ_ONLY, FPI_HEADER_SIZE, size, ByteOrder.LITTLE_ENDIAN), step);
+		}
+	}
+
+	/**
+	 * Gets the size of the pixel data following an FPI header.
+	 *
+	 * @param buf  the buffer holding the header at its start
+	 * @param name the name of the file or stream for error messages
+	 * @return     the size of the pixel data in bytes
+	 * @throws IOException if the header is malformed
+	 */
+	static long getFpiDataSize(ByteBuffer buf, String name) throws IOException {
+		buf.order(ByteOrder.LITTLE_ENDIAN);
+		if(buf.getInt(0) != FPI_MAGIC) throw new IOException("Not an FPI file: " + name);
+		int width = buf.getInt(4);
+		int height = buf.getInt(8);
+		int channels = buf.getInt(12);
+		long nPx = (long) width * height;
+		if(width < 0 || height < 0 || channels != 4 || nPx > Integer.MAX_VALUE) {
+			throw new IOException("Malformed FPI file: " + name);
+		}
+		return nPx * 4 * channels;
+	}
+
+	/**
+	 * Decode an FPI image held in a buffer, keeping only every Nth pixel of
+	 * every Nth row.
+	 *
+	 * @param buf  the buffer holding the whole file
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @param name the name of the file or stream for error messages
+	 * @return     the image read
+	 * @throws IOException if the image is malformed
+	 */
+	static FloatImage decodeFpi(ByteBuffer buf, int step, String name) throws IOException {
+		if(buf.limit() < FPI_HEADER_SIZE + getFpiDataSize(buf, name)) {
+			throw new IOException("Truncated FPI file: " + name);
+		}
+		buf.position(FPI_HEADER_SIZE);
+		return decodeFpi(buf.getInt(4), buf.getInt(8), getSource(buf.asFloatBuffer()), step);
+	}
+
+	/**
+	 * Decode the planes of an FPI image, keeping only every Nth pixel of
+	 * every Nth row.
+	 *
+	 * @param width  the width of the image
+	 * @param height the height of the image
+	 * @param src    the floats following the header
+	 * @param step   the subsampling factor N, 1 to read the full image
+	 * @return       the image read
+	 * @throws IOException if the floats could not be read
+	 */
+	private static FloatImage decodeFpi(int width, int height, FloatSource src, int step) throws IOException {
+		int nPx = width * height;
+		int outWidth = getSubsampledSize(width, step);
+		int outHeight = getSubsampledSize(height, step);
+		float planes[][] = new float[4][outWidth * outHeight];
+		float row[] = new float[outWidth == 0 ? 0 : (outWidth - 1) * step + 1];
+		for(int c = 0; c < 4; c++) {
+			long plane = (long) c * nPx;
+			if(step == 1) {
+				src.read(plane, planes[c], 0, nPx);
+				continue;
+			}
+			for(int y = 0; y < outHeight; y++) {
+				src.read(plane + (long) y * step * width, row, 0, row.length);
+				int dst = y * outWidth;
+				for(int x = 0; x < outWidth; x++) {
+					planes[c][dst + x] = row[x * step];
+				}
+			}
+		}
+		FloatImage im = new FloatImage(outWidth, outHeight, planes[0], planes[1], planes[2], planes[3]);
+		im.detectConstants();
+		return im;
+	}
+
+	/**
+	 * Write an image as an FPI file.
+	 *
+	 * @param im the image to write
+	 * @param f  the destination file
+	 * @throws IOException if the file could not be written
+	 */
+	public static void writeFpi(FloatImage im, File f) throws IOException {
+		int nPx = im.width * im.height;
+		long size = FPI_HEADER_SIZE + (long) nPx * 4 * 4;
+		try(FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(FPI_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(FPI_MAGIC);
+			header.putInt(im.width);
+			header.putInt(im.height);
+			header.putInt(4);
+			header.flip();
+			while(header.hasRemaining()) ch.write(header, header.position());
+
+			MappedFloats floats = new MappedFloats(ch, FileChannel.MapMode.READ_WRITE, FPI_HEADER_SIZE, size, ByteOrder.LITTLE_ENDIAN);
+			for(int c = 0; c < 4; c++) {
+				floats.write((long) c * nPx, im.planes[c], im.constants[c], 0, nPx);
+			}
+		}
+	}
+
+	/**
+	 * Writes the same value to a buffer many times.
+	 *
+	 * @param fb the buffer
+	 * @param k  the value to write
+	 * @param n  the number of times to write it
+	 */
+	private static void putConstant(FloatBuffer fb, float k, int n) {
+		float run[] = new float[Math.min(n, 4096)];
+		Arrays.fill(run, k);
+		while(n > 0) {
+			int len = Math.min(n, run.length);
+			fb.put(run, 0, len);
+			n -= len;
+		}
+	}
+
+	/**
+	 * Reads one whitespace delimited token of a PFM header.
+	 *
+	 * @param buf the buffer positioned at the token or whitespace before it
+	 * @return    the token
+	 */
+	private static String readPfmToken(ByteBuffer buf) {
+		StringBuilder sb = new StringBuilder();
+		while(buf.hasRemaining()) {
+			char c = (char) buf.get();
+			if(Character.isWhitespace(c)) {
+				if(sb.length() > 0) break;
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Read a PFM file. Both color ("PF") and grayscale ("Pf") files are
+	 * supported. The alpha channel of the result is 1.
+	 *
+	 * @param f the file to read
+	 * @return  the image read
+	 * @throws IOException if the file could not be read or is malformed
+	 */
+	public static FloatImage readPfm(File f) throws IOException {
+		return readPfm(f, 1);
+	}
+
+	/**
+	 * Read a PFM file, keeping only every Nth pixel of every Nth row.
+	 *
+	 * @param f    the file to read
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @return     the image read
+	 * @throws IOException if the file could not be read or is malformed
+	 */
+	public static FloatImage readPfm(File f, int step) throws IOException {
+		try(FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			long size = ch.size();
+			ByteBuffer header = ch.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, PFM_HEADER_LIMIT));
+			PfmHeader h = new PfmHeader(header, f.getPath());
+			if(size - header.position() < h.getDataSize()) throw new IOException("Malformed PFM file: " + f.getPath());
+			return decodePfm(h, new MappedFloats(ch, FileChannel.MapMode.READ_ONLY, header.position(), size, h.order), step);
+		}
+	}
+
+	/**
+	 * The header of a PFM image.
+	 */
+	private static class PfmHeader {
+
+		/**
+		 * The number of channels: 3 for color, 1 for grayscale.
+		 */
+		final int channels;
+
+		/**
+		 * The size of the image.
+		 */
+		final int width, height;
+
+		/**
+		 * The byte order of the pixel data.
+		 */
+		final ByteOrder order;
+
+		/**
+		 * Parses a PFM header.
+		 *
+		 * @param buf  the buffer holding the header at its position, left
+		 *             positioned at the pixel data
+		 * @param name the name of the file or stream for error messages
+		 * @throws IOException if the header is malformed
+		 */
+		PfmHeader(ByteBuffer buf, String name) throws IOException {
+			try {
+				String type = readPfmToken(buf);
+				if(type.equals("PF")) this.channels = 3;
+				else if(type.equals("Pf")) this.channels = 1;
+				else throw new IOException("Not a PFM file: " + name);
+				this.width = Integer.parseInt(readPfmToken(buf));
+				this.height = Integer.parseInt(readPfmToken(buf));
+				this.order = Float.parseFloat(readPfmToken(buf)) < 0.0f ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+			} catch(NumberFormatException ex) {
+				throw new IOException("Malformed PFM file: " + name);
+			}
+			if(this.width < 0 || this.height < 0 || (long) this.width * this.height > Integer.MAX_VALUE) {
+				throw new IOException("Malformed PFM file: " + name);
+			}
+		}
+
+		/**
+		 * Gets the size of the pixel data.
+		 *
+		 * @return the size in bytes
+		 */
+		long getDataSize() {
+			return (long) this.width * this.height * 4 * this.channels;
+		}
+	}
+
+	/**
+	 * Gets the size of the pixel data following a PFM header.
+	 *
+	 * @param buf  the buffer holding the header at its start
+	 * @param name the name of the file or stream for error messages
+	 * @return     the size of the pixel data in bytes
+	 * @throws IOException if the header is malformed
+	 */
+	static long getPfmDataSize(ByteBuffer buf, String name) throws IOException {
+		return new PfmHeader(buf, name).getDataSize();
+	}
+
+	/**
+	 * Decode a PFM image held in a buffer, keeping only every Nth pixel of
+	 * every Nth row.
+	 *
+	 * @param buf  the buffer holding the whole file
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @param name the name of the file or stream for error messages
+	 * @return     the image read
+	 * @throws IOException if the image is malformed
+	 */
+	static FloatImage decodePfm(ByteBuffer buf, int step, String name) throws IOException {
+		PfmHeader h = new PfmHeader(buf, name);
+		if(buf.remaining() < h.getDataSize()) throw new IOException("Malformed PFM file: " + name);
+		return decodePfm(h, getSource(buf.slice().order(h.order).asFloatBuffer()), step);
+	}
+
+	/**
+	 * Decode the pixels of a PFM image, keeping only every Nth pixel of every
+	 * Nth row.
+	 *
+	 * @param h    the header
+	 * @param src  the floats following the header
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @return     the image read
+	 * @throws IOException if the floats could not be read
+	 */
+	private static FloatImage decodePfm(PfmHeader h, FloatSource src, int step) throws IOException {
+		int width = h.width, height = h.height, channels = h.channels;
+		int outWidth = getSubsampledSize(width, step);
+		int outHeight = getSubsampledSize(height, step);
+		float pxR[] = new float[outWidth * outHeight];
+		float pxG[] = new float[outWidth * outHeight];
+		float pxB[] = new float[outWidth * outHeight];
+		float row[] = new float[width * channels];
+
+		//PFM stores rows from bottom to top
+		for(int y = 0; y < outHeight; y++) {
+			src.read((long) (height - 1 - y * step) * width * channels, row, 0, row.length);
+			int dst = y * outWidth;
+			if(channels == 3) {
+				for(int x = 0; x < outWidth; x++) {
+					pxR[dst + x] = row[x * step * 3 + 0];
+					pxG[dst + x] = row[x * step * 3 + 1];
+					pxB[dst + x] = row[x * step * 3 + 2];
+				}
+			} else if(step == 1) {
+				System.arraycopy(row, 0, pxR, dst, width);
+				System.arraycopy(row, 0, pxG, dst, width);
+				System.arraycopy(row, 0, pxB, dst, width);
+			} else {
+				for(int x = 0; x < outWidth; x++) {
+					pxR[dst + x] = pxG[dst + x] = pxB[dst + x] = row[x * step];
+				}
+			}
+		}
+		FloatImage im = new FloatImage(outWidth, outHeight, new float[][] { pxR, pxG, pxB, null },
+			new float[] { 0.0f, 0.0f, 0.0f, 1.0f });
+		im.detectConstants();
+		return im;
+	}
+
+	/**
+	 * Write an image as a color PFM file. The alpha channel is discarded.
+	 *
+	 * @param im the image to write
+	 * @param f  the destination file
+	 * @throws IOException if the file could not be written
+	 */
+	public static void writePfm(FloatImage im, File f) throws IOException {
+		int width = im.width;
+		int height = im.height;
+		byte header[] = ("PF\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII);
+		long size = header.length + (long) width * height * 3 * 4;
+		try(FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer hb = ByteBuffer.wrap(header);
+			while(hb.hasRemaining()) ch.write(hb, hb.position());
+			MappedFloats floats = new MappedFloats(ch, FileChannel.MapMode.READ_WRITE, header.length, size, ByteOrder.LITTLE_ENDIAN);
+			long pos = 0;
+			float row[] = new float[width * 3];
+			float pxR[] = im.planes[0], pxG[] = im.planes[1], pxB[] = im.planes[2];
+			float kr = im.constants[0], kg = im.constants[1], kb = im.constants[2];
+
+			for(int y = height - 1; y >= 0; y--) {
+				int src = y * width;
+				for(int x = 0; x < width; x++) {
+					row[x * 3 + 0] = pxR != null ? pxR[src + x] : kr;
+					row[x * 3 + 1] = pxG != null ? pxG[src + x] : kg;
+					row[x * 3 + 2] = pxB != null ? pxB[src + x] : kb;
+				}
+				floats.write(pos, row, 0.0f, 0, row.length);
+				pos += row.length;
+			}
+		}
+	}
+
+	/**
+	 * Write an image to a stream, PNG at the default level. The stream is
+	 * flushed but not closed.
+	 *
+	 * @param im     the image to write
+	 * @param format "fpi", "pfm", or "png"
+	 * @param out    the stream to write to
+	 * @throws IOException if the stream could not be written
+	 */
+	public static void write(FloatImage im, String format, OutputStream out) throws IOException {
+		write(im, format, out, PngWriter.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Write an image to a stream. The stream is flushed but not closed.
+	 *
+	 * @param im       the image to write
+	 * @param format   "fpi", "pfm", or "png"
+	 * @param out      the stream to write to
+	 * @param pngLevel the compression level of PNG, from 0 to 9
+	 * @throws IOException if the stream could not be written
+	 */
+	public static void write(FloatImage im, String format, OutputStream out, int pngLevel) throws IOException {
+		if(format.equals("png")) {
+			PngWriter.write(im, out, pngLevel);
+			out.flush();
+			return;
+		}
+
+		WritableByteChannel ch = Channels.newChannel(out);
+		ByteBuffer buf = ByteBuffer.allocate(STREAM_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		int width = im.width, height = im.height;
+		if(format.equals("fpi")) {
+			buf.putInt(FPI_MAGIC);
+			buf.putInt(width);
+			buf.putInt(height);
+			buf.putInt(4);
+			for(int c = 0; c < 4; c++) {
+				putFloats(ch, buf, im.planes[c], im.constants[c], 0, width * height);
+			}
+		} else {
+			buf.put(("PF\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII));
+			float row[] = new float[width * 3];
+			for(int y = height - 1; y >= 0; y--) {
+				for(int c = 0; c < 3; c++) {
+					float px[] = im.planes[c];
+					for(int x = 0; x < width; x++) {
+						row[x * 3 + c] = px != null ? px[y * width + x] : im.constants[c];
+					}
+				}
+				putFloats(ch, buf, row, 0.0f, 0, row.length);
+			}
+		}
+		flush(ch, buf);
+		out.flush();
+	}
+
+	/**
+	 * Writes floats to a channel through a buffer, writing the buffer out
+	 * whenever it fills up.
+	 *
+	 * @param ch  the channel
+	 * @param buf the buffer, in little endian order
+	 * @param src the values, or null to write a constant
+	 * @param k   the constant to write if src is null
+	 * @param off the index of the first value to write
+	 * @param n   the number of values to write
+	 * @throws IOException if the channel could not be written
+	 */
+	private static void putFloats(WritableByteChannel ch, ByteBuffer buf, float src[], float k, int off, int n)
+			throws IOException {
+		while(n > 0) {
+			int len = Math.min(n, buf.remaining() / 4);
+			if(len == 0) {
+				flush(ch, buf);
+				continue;
+			}
+			FloatBuffer fb = buf.asFloatBuffer();
+			if(src != null) {
+				fb.put(src, off, len);
+			} else {
+				for(int i = 0; i < len; i++) fb.put(k);
+			}
+			buf.position(buf.position() + len * 4);
+			off += len;
+			n -= len;
+		}
+	}
+
+	/**
+	 * Writes out the contents of a buffer and clears it.
+	 *
+	 * @param ch  the channel
+	 * @param buf the buffer
+	 * @throws IOException if the channel could not be written
+	 */
+	private static void flush(WritableByteChannel ch, ByteBuffer buf) throws IOException {
+		buf.flip();
+		while(buf.hasRemaining()) {
+			ch.write(buf);
+		}
+		buf.clear();
+	}
+
+}
@@ -0,0 +1,239 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+
+/**
+ * This class represents a sequence of frames read by one <code>i</code>
+ * command. A sequence is either a numbered file pattern such as
+ * <code>frame%04d.png</code>, whose frames are the consecutive numbered files
+ * starting at 0 or 1, or a multi-image file such as a multi-page TIFF named
+ * with a trailing <code>#</code>, as in <code>pages.tif#</code>.
+ *
+ * Frames are read on demand and independently of each other, so different
+ * frames may be read by different threads at the same time.
+ */
+class FrameSequence {
+
+	/**
+	 * Matches the frame number placeholder of a pattern.
+	 */
+	private static final Pattern PLACEHOLDER = Pattern.compile("%0?\\d*d");
+
+	/**
+	 * The suffix marking a multi-image file.
+	 */
+	private static final String MULTI_IMAGE_SUFFIX = "#";
+
+	/**
+	 * The pattern, or the path of the multi-image file.
+	 */
+	private final String path;
+
+	/**
+	 * Whether this is a multi-image file rather than a pattern.
+	 */
+	private final boolean multiImage;
+
+	/**
+	 * The number of the first frame.
+	 */
+	private final int first;
+
+	/**
+	 * The number of frames.
+	 */
+	private final int count;
+
+	/**
+	 * Open a frame sequence, counting its frames.
+	 *
+	 * @param path the pattern, or the path of the multi-image file with a
+	 *             trailing <code>#</code>
+	 * @throws IOException if the sequence has no frames or the multi-image
+	 *                     file could not be read
+	 */
+	FrameSequence(String path) throws IOException {
+		this.multiImage = path.endsWith(MULTI_IMAGE_SUFFIX);
+		if(this.multiImage) {
+			this.path = path.substring(0, path.length() - MULTI_IMAGE_SUFFIX.length());
+			this.first = 0;
+			this.count = this.withReader(new ReaderTask<Integer>() {
+				@Override
+				public Integer run(ImageReader reader) throws IOException {
+					return reader.getNumImages(true);
+				}
+			});
+		} else {
+			this.path = path;
+			this.first = getFrameFile(path, 0).exists() ? 0 : 1;
+			int n = 0;
+			while(getFrameFile(path, this.first + n).exists()) n++;
+			this.count = n;
+		}
+		if(this.count == 0) throw new FileNotFoundException("No frames found for " + path);
+	}
+
+	/**
+	 * Determines whether a path given to <code>i</code> is a frame sequence.
+	 *
+	 * @param path the path
+	 * @return     true for a pattern or a multi-image file
+	 */
+	static boolean isSequence(String path) {
+		return isPattern(path) || (path.endsWith(MULTI_IMAGE_SUFFIX) && path.length() > MULTI_IMAGE_SUFFIX.length());
+	}
+
+	/**
+	 * Determines whether a path is a numbered file pattern.
+	 *
+	 * @param path the path
+	 * @return     true if the path has a frame number placeholder
+	 */
+	static boolean isPattern(String path) {
+		return PLACEHOLDER.matcher(path).find();
+	}
+
+	/**
+	 * Gets the file of one frame of a pattern.
+	 *
+	 * @param pattern the pattern
+	 * @param number  the frame number
+	 * @return        the file
+	 */
+	static File getFrameFile(String pattern, int number) {
+		Matcher m = PLACEHOLDER.matcher(pattern);
+		if(!m.find()) return new File(pattern);
+		return new File(pattern.substring(0, m.start()) + String.format(m.group(), number) + pattern.substring(m.end()));
+	}
+
+	/**
+	 * Gets the number of frames.
+	 *
+	 * @return the number of frames
+	 */
+	int getCount() {
+		return this.count;
+	}
+
+	/**
+	 * Gets the number of the first frame, which is 0 or 1 for a pattern and 0
+	 * for a multi-image file.
+	 *
+	 * @return the number of the first frame
+	 */
+	int getFirst() {
+		return this.first;
+	}
+
+	/**
+	 * Gets the number of pixels of the first frame without decoding it.
+	 *
+	 * @return the number of pixels
+	 * @throws IOException if the frame could not be read
+	 */
+	long getPixelCount() throws IOException {
+		if(!this.multiImage) {
+			File f = getFrameFile(this.path, this.first);
+			String ext = FloatImageIO.getExtension(f);
+			if(ext.equals("fpi") || ext.equals("pfm")) return FloatImageIO.getPixelCount(f);
+		}
+		return this.withReader(0, new ReaderTask<Long>() {
+			@Override
+			public Long run(ImageReader reader) throws IOException {
+				return (long) reader.getWidth(0) * reader.getHeight(0);
+			}
+		});
+	}
+
+	/**
+	 * Read a frame, keeping only every Nth pixel of every Nth row.
+	 *
+	 * @param index the index of the frame, counting from 0
+	 * @param step  the subsampling factor N, 1 to read the full frame
+	 * @return      the frame
+	 * @throws IOException if the frame could not be read
+	 */
+	FloatImage read(final int index, final int step) throws IOException {
+		if(!this.multiImage) return FloatImageIO.read(getFrameFile(this.path, this.first + index), step);
+		return this.withReader(new ReaderTask<FloatImage>() {
+			@Override
+			public FloatImage run(ImageReader reader) throws IOException {
+				ImageReadParam param = reader.getDefaultReadParam();
+				param.setSourceSubsampling(step, step, 0, 0);
+				return new FloatImage(reader.read(index, param));
+			}
+		});
+	}
+
+	/**
+	 * Work done with an ImageReader.
+	 */
+	private interface ReaderTask<T> {
+
+		/**
+		 * Do the work.
+		 *
+		 * @param reader the reader, with its input set
+		 * @return       the result
+		 * @throws IOException if the image could not be read
+		 */
+		T run(ImageReader reader) throws IOException;
+	}
+
+	/**
+	 * Runs a task with a reader for the multi-image file.
+	 *
+	 * @param task the task
+	 * @return     the result of the task
+	 * @throws IOException if the file could not be read
+	 */
+	private <T> T withReader(ReaderTask<T> task) throws IOException {
+		File f = new File(this.path);
+		if(!f.canRead()) throw new FileNotFoundException("Can't read input file: " + this.path);
+		try(ImageInputStream in = ImageIO.createImageInputStream(f)) {
+			return runReader(in, this.path, task);
+		}
+	}
+
+	/**
+	 * Runs a task with a reader for a frame.
+	 *
+	 * @param index the index of the frame
+	 * @param task  the task
+	 * @return      the result of the task
+	 * @throws IOException if the file could not be read
+	 */
+	private <T> T withReader(int index, ReaderTask<T> task) throws IOException {
+		if(this.multiImage) return this.withReader(task);
+		File f = getFrameFile(this.path, this.first + index);
+		try(ImageInputStream in = ImageIO.createImageInputStream(f)) {
+			return runReader(in, f.getPath(), task);
+		}
+	}
+
+	/**
+	 * Runs a task with a reader for a stream.
+	 *
+	 * @param in   the stream
+	 * @param name the name of the stream for error messages
+	 * @param task the task
+	 * @return     the result of the task
+	 * @throws IOException if the stream could not be read
+	 */
+	private static <T> T runReader(ImageInputStream in, String name, ReaderTask<T> task) throws IOException {
+		Iterator<ImageReader> readers = in == null ? null : ImageIO.getImageReaders(in);
+		if(readers == null || !readers.hasNext()) throw new IOException("Unsupported image format: " + name);
+		ImageReader reader = readers.next();
+		try {
+			reader.setInput(in, false, true);
+			return task.run(reader);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+}
@@ -0,0 +1,235 @@
+package com.garhoogin.imgop;
+
+import java.util.*;
+
+/**
+ * This class holds measures of the difference between two images. The mean
+ * squared error and maximum absolute difference of every channel are computed
+ * together in one parallel pass; the structural similarity is computed
+ * separately on request. Images of different sizes are not compared, and
+ * every measure of them is NaN so that any check against it fails.
+ */
+class ImageMetrics {
+
+	/**
+	 * The size of the square windows SSIM is computed over.
+	 */
+	private static final int SSIM_WINDOW = 8;
+
+	/**
+	 * The distance between neighbouring SSIM windows.
+	 */
+	private static final int SSIM_STEP = 4;
+
+	/**
+	 * SSIM stabilizing constants for a dynamic range of 1.
+	 */
+	private static final double SSIM_C1 = 0.01 * 0.01;
+	private static final double SSIM_C2 = 0.03 * 0.03;
+
+	/**
+	 * The images compared.
+	 */
+	private final FloatImage i1, i2;
+
+	/**
+	 * The mean squared error of each channel.
+	 */
+	private final double mse[] = new double[4];
+
+	/**
+	 * The maximum absolute difference of each channel.
+	 */
+	private final double maxDiff[] = new double[4];
+
+	/**
+	 * Compare two images.
+	 *
+	 * @param i1 the first image
+	 * @param i2 the second image
+	 */
+	ImageMetrics(final FloatImage i1, final FloatImage i2) {
+		this.i1 = i1;
+		this.i2 = i2;
+		if(!isSameSize(i1, i2)) {
+			Arrays.fill(this.mse, Double.NaN);
+			Arrays.fill(this.maxDiff, Double.NaN);
+			return;
+		}
+		final int dw = i1.width;
+		final int dh = i1.height;
+		//the band height is read once, as another thread may change it
+		final int rows = Parallel.bandRows;
+		final double sums[][] = new double[Parallel.getRangeCount(dh, rows)][4];
+		final double maxes[][] = new double[sums.length][4];
+
+		Parallel.forEachRange(dh, rows, new Parallel.Band() {
+			@Override
+			public void run(int band, int y0, int y1) {
+				for(int c = 0; c < 4; c++) {
+					float a[] = i1.planes[c], b[] = i2.planes[c];
+					float ka = i1.constants[c], kb = i2.constants[c];
+					double sum = 0.0, max = 0.0;
+					for(int y = y0; y < y1; y++) {
+						int off = y * dw;
+						for(int x = 0; x < dw; x++) {
+							double d = (a != null ? a[off + x] : ka) - (b != null ? b[off + x] : kb);
+							sum += d * d;
+							max = Math.max(max, Math.abs(d));
+						}
+					}
+					sums[band][c] = sum;
+					maxes[band][c] = max;
+				}
+			}
+		});
+
+		double nPx = (double) dw * dh;
+		for(int band = 0; band < sums.length; band++) {
+			for(int c = 0; c < 4; c++) {
+				this.mse[c] += sums[band][c];
+				this.maxDiff[c] = Math.max(this.maxDiff[c], maxes[band][c]);
+			}
+		}
+		for(int c = 0; c < 4; c++) {
+			this.mse[c] = nPx > 0 ? this.mse[c] / nPx : 0.0;
+		}
+	}
+
+	/**
+	 * Determines whether two images can be compared.
+	 *
+	 * @param i1 the first image
+	 * @param i2 the second image
+	 * @return   true if the images have the same width and height
+	 */
+	static boolean isSameSize(FloatImage i1, FloatImage i2) {
+		return i1.width == i2.width && i1.height == i2.height;
+	}
+
+	/**
+	 * Gets the measure a comparison command pushes.
+	 *
+	 * @param op the command character: <code>E</code>, <code>P</code>,
+	 *           <code>D</code>, or <code>S</code>
+	 * @return   the measure of each channel
+	 */
+	Vec4 get(char op) {
+		switch(op) {
+			case 'E':
+				return this.getMeanSquaredError();
+			case 'P':
+				return this.getPsnr();
+			case 'D':
+				return this.getMaxDifference();
+			default:
+				return this.getSsim();
+		}
+	}
+
+	/**
+	 * Gets the mean squared error of each channel.
+	 *
+	 * @return the mean squared error
+	 */
+	public Vec4 getMeanSquaredError() {
+		return toVec4(this.mse);
+	}
+
+	/**
+	 * Gets the peak signal to noise ratio of each channel in decibels, taking
+	 * 1 as the peak value. Identical channels have an infinite ratio.
+	 *
+	 * @return the peak signal to noise ratio
+	 */
+	public Vec4 getPsnr() {
+		double psnr[] = new double[4];
+		for(int c = 0; c < 4; c++) {
+			psnr[c] = this.mse[c] == 0.0 ? Double.POSITIVE_INFINITY : -10.0 * Math.log10(this.mse[c]);
+		}
+		return toVec4(psnr);
+	}
+
+	/**
+	 * Gets the maximum absolute difference of each channel.
+	 *
+	 * @return the maximum absolute difference
+	 */
+	public Vec4 getMaxDifference() {
+		return toVec4(this.maxDiff);
+	}
+
+	/**
+	 * Computes the mean structural similarity of each channel over windows of
+	 * 8x8 pixels spaced 4 pixels apart.
+	 *
+	 * @return the structural similarity, 1 for identical channels
+	 */
+	public Vec4 getSsim() {
+		final FloatImage i1 = this.i1, i2 = this.i2;
+		if(!isSameSize(i1, i2)) return new Vec4(Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+		final int dw = i1.width;
+		final int dh = i1.height;
+		final int winW = Math.min(SSIM_WINDOW, dw), winH = Math.min(SSIM_WINDOW, dh);
+		final int nCols = dw == 0 ? 0 : (dw - winW) / SSIM_STEP + 1;
+		final int nRows = dh == 0 ? 0 : (dh - winH) / SSIM_STEP + 1;
+		final int rows = Parallel.bandRows;
+		final double sums[][] = new double[Parallel.getRangeCount(nRows, rows)][4];
+
+		//bands are over rows of windows rather than rows of pixels
+		Parallel.forEachRange(nRows, rows, new Parallel.Band() {
+			@Override
+			public void run(int band, int r0, int r1) {
+				double n = winW * winH;
+				for(int c = 0; c < 4; c++) {
+					float a[] = i1.planes[c], b[] = i2.planes[c];
+					float ka = i1.constants[c], kb = i2.constants[c];
+					double total = 0.0;
+					for(int row = r0; row < r1; row++) {
+						for(int col = 0; col < nCols; col++) {
+							double sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+							for(int y = row * SSIM_STEP; y < row * SSIM_STEP + winH; y++) {
+								int off = y * dw;
+								for(int x = col * SSIM_STEP; x < col * SSIM_STEP + winW; x++) {
+									double pa = a != null ? a[off + x] : ka;
+									double pb = b != null ? b[off + x] : kb;
+									sa += pa;
+									sb += pb;
+									saa += pa * pa;
+									sbb += pb * pb;
+									sab += pa * pb;
+								}
+							}
+							double ma = sa / n, mb = sb / n;
+							double va = saa / n - ma * ma, vb = sbb / n - mb * mb, cov = sab / n - ma * mb;
+							total += ((2 * ma * mb + SSIM_C1) * (2 * cov + SSIM_C2))
+								/ ((ma * ma + mb * mb + SSIM_C1) * (va + vb + SSIM_C2));
+						}
+					}
+					sums[band][c] = total;
+				}
+			}
+		});
+
+		double ssim[] = new double[4];
+		double nWindows = (double) nRows * nCols;
+		for(int c = 0; c < 4; c++) {
+			for(int band = 0; band < sums.length; band++) {
+				ssim[c] += sums[band][c];
+			}
+			ssim[c] = nWindows > 0 ? ssim[c] / nWindows : 1.0;
+		}
+		return toVec4(ssim);
+	}
+
+	/**
+	 * Converts per-channel values to a vector.
+	 *
+	 * @param d the values
+	 * @return  the vector
+	 */
+	private static Vec4 toVec4(double d[]) {
+		return new Vec4((float) d[0], (float) d[1], (float) d[2], (float) d[3]);
+	}
+
+}
@@ -0,0 +1,203 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import javax.imageio.stream.*;
+
+/**
+ * This class reads a sequence of images concatenated in one stream, such as
+ * standard input. Each image is read completely before it is decoded and
+ * nothing past its end is consumed, so only one image is held in memory at a
+ * time and the next image is left intact for the next read.
+ *
+ * FPI and PFM images are delimited by the sizes in their headers, and PNG
+ * images by their chunk structure. An image in any other format ImageIO can
+ * read is decoded from the rest of the stream, so it can only be the last
+ * one.
+ */
+class ImageStreamReader {
+
+	/**
+	 * The PNG file signature.
+	 */
+	private static final byte PNG_SIGNATURE[] = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	/**
+	 * The name of the stream for error messages.
+	 */
+	private static final String NAME = "standard input";
+
+	/**
+	 * The stream images are read from.
+	 */
+	private final PushbackInputStream in;
+
+	/**
+	 * Whether the stream has been read to its end.
+	 */
+	private boolean exhausted;
+
+	/**
+	 * Create an ImageStreamReader.
+	 *
+	 * @param in the stream to read images from
+	 */
+	ImageStreamReader(InputStream in) {
+		this.in = new PushbackInputStream(new BufferedInputStream(in, 1 << 16), PNG_SIGNATURE.length);
+	}
+
+	/**
+	 * Determines whether there is another image in the stream, waiting for
+	 * data if necessary.
+	 *
+	 * @return true if the stream has not ended
+	 * @throws IOException if the stream could not be read
+	 */
+	boolean hasNext() throws IOException {
+		if(this.exhausted) return false;
+		int b = this.in.read();
+		if(b == -1) {
+			this.exhausted = true;
+			return false;
+		}
+		this.in.unread(b);
+		return true;
+	}
+
+	/**
+	 * Read the next image, keeping only every Nth pixel of every Nth row.
+	 *
+	 * @param step the subsampling factor N, 1 to read the full image
+	 * @return     the image read
+	 * @throws IOException if the stream ended or does not hold an image
+	 */
+	FloatImage read(int step) throws IOException {
+		if(!this.hasNext()) throw new EOFException("No more images on " + NAME);
+
+		byte magic[] = new byte[4];
+		int n = this.readUpTo(magic);
+		this.in.unread(magic, 0, n);
+		if(n == 4 && ByteBuffer.wrap(magic).order(ByteOrder.LITTLE_ENDIAN).getInt() == FloatImageIO.FPI_MAGIC) {
+			byte header[] = this.readFully(new byte[FloatImageIO.FPI_HEADER_SIZE]);
+			long dataSize = FloatImageIO.getFpiDataSize(ByteBuffer.wrap(header), NAME);
+			return FloatImageIO.decodeFpi(this.readBody(header, dataSize), step, NAME);
+		}
+		if(n >= 2 && magic[0] == 'P' && (magic[1] == 'F' || magic[1] == 'f')) {
+			byte header[] = this.readPfmHeader();
+			long dataSize = FloatImageIO.getPfmDataSize(ByteBuffer.wrap(header), NAME);
+			return FloatImageIO.decodePfm(this.readBody(header, dataSize), step, NAME);
+		}
+		if(n == 4 && magic[0] == PNG_SIGNATURE[0] && magic[1] == 'P' && magic[2] == 'N' && magic[3] == 'G') {
+			byte png[] = this.readPng();
+			try(ImageInputStream iis = new MemoryCacheImageInputStream(new ByteArrayInputStream(png))) {
+				return FloatImageIO.decode(iis, step, NAME);
+			}
+		}
+
+		//not self delimiting, so the image takes the rest of the stream
+		this.exhausted = true;
+		try(ImageInputStream iis = new MemoryCacheImageInputStream(this.in)) {
+			return FloatImageIO.decode(iis, step, NAME);
+		}
+	}
+
+	/**
+	 * Reads as many bytes as are available up to the size of an array.
+	 *
+	 * @param b the array to fill
+	 * @return  the number of bytes read
+	 * @throws IOException if the stream could not be read
+	 */
+	private int readUpTo(byte b[]) throws IOException {
+		int n = 0;
+		while(n < b.length) {
+			int len = this.in.read(b, n, b.length - n);
+			if(len == -1) break;
+			n += len;
+		}
+		return n;
+	}
+
+	/**
+	 * Fills an array from the stream.
+	 *
+	 * @param b the array to fill
+	 * @return  the array
+	 * @throws IOException if the stream ended first
+	 */
+	private byte[] readFully(byte b[]) throws IOException {
+		if(this.readUpTo(b) < b.length) throw new EOFException("Truncated image on " + NAME);
+		return b;
+	}
+
+	/**
+	 * Reads the pixel data following a header and returns the whole image.
+	 *
+	 * @param header   the header already read
+	 * @param dataSize the size of the pixel data
+	 * @return         a buffer holding the header and pixel data
+	 * @throws IOException if the stream ended first or the image is too large
+	 */
+	private ByteBuffer readBody(byte header[], long dataSize) throws IOException {
+		if(header.length + dataSize > Integer.MAX_VALUE) throw new IOException("Image too large on " + NAME);
+		byte b[] = new byte[(int) (header.length + dataSize)];
+		System.arraycopy(header, 0, b, 0, header.length);
+		int n = header.length;
+		while(n < b.length) {
+			int len = this.in.read(b, n, b.length - n);
+			if(len == -1) throw new EOFException("Truncated image on " + NAME);
+			n += len;
+		}
+		return ByteBuffer.wrap(b);
+	}
+
+	/**
+	 * Reads a PFM header: four whitespace separated tokens and the single
+	 * whitespace character ending the last of them.
+	 *
+	 * @return the header
+	 * @throws IOException if the stream ended first
+	 */
+	private byte[] readPfmHeader() throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int tokens = 0;
+		boolean inToken = false;
+		while(tokens < 4) {
+			int b = this.in.read();
+			if(b == -1) throw new EOFException("Truncated image on " + NAME);
+			if(header.size() > 256) throw new IOException("Malformed PFM file: " + NAME);
+			header.write(b);
+			if(Character.isWhitespace((char) b)) {
+				if(inToken) tokens++;
+				inToken = false;
+			} else {
+				inToken = true;
+			}
+		}
+		return header.toByteArray();
+	}
+
+	/**
+	 * Reads a PNG file: the signature followed by chunks up to and including
+	 * the IEND chunk.
+	 *
+	 * @return the PNG file
+	 * @throws IOException if the stream ended first
+	 */
+	private byte[] readPng() throws IOException {
+		ByteArrayOutputStream png = new ByteArrayOutputStream();
+		png.write(this.readFully(new byte[PNG_SIGNATURE.length]));
+		byte chunkHeader[] = new byte[8];
+		while(true) {
+			this.readFully(chunkHeader);
+			png.write(chunkHeader);
+			long length = ByteBuffer.wrap(chunkHeader).getInt() & 0xFFFFFFFFL;
+			String type = new String(chunkHeader, 4, 4, StandardCharsets.US_ASCII);
+			if(length > Integer.MAX_VALUE - 4) throw new IOException("Malformed PNG file: " + NAME);
+			png.write(this.readFully(new byte[(int) length + 4])); //data and CRC
+			if(type.equals("IEND")) return png.toByteArray();
+		}
+	}
+
+}
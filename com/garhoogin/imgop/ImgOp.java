@@ -24,100 +24,249 @@ public class ImgOp {
 		u  duplicate top of stack
 		o  pop stack and write to location
 		w  swap top two stack items
+		E  mean squared error of two images
+		P  peak signal to noise ratio of two images
+		D  maximum absolute difference of two images
+		S  structural similarity of two images
+		t  check that a value is at least a bound
+		T  check that a value is at most a bound
+		e  pop stack and print it
+		b  composite top image onto the one below it
+		r  flip, rotate, or transpose top image
 		*/
 
-		Stack<Object> stack = new Stack<>();
-		for(int i = 0; i < args.length; i++) {
-			String arg = args[i];
-			char cmd = arg.charAt(0);
-
-			switch(cmd) {
-				case 'a':
-				case '+':
-					stackAdd(stack);
-					break;
-				case 's':
-				case '-':
-					stackSubtract(stack);
-					break;
-				case 'm':
-				case '*':
-					stackMultiply(stack);
-					break;
-				case 'd':
-				case '/':
-					stackDivide(stack);
-					break;
-				case 'p':
-				case '^':
-					stackPower(stack);
-					break;
-				case 'c':
-					stackClampMin(stack);
-					break;
-				case 'C':
-					stackClampMax(stack);
-					break;
-				case 'v':
-				{
-					i++;
-					float v1 = Float.parseFloat(args[i]);
-					i++;
-					float v2 = Float.parseFloat(args[i]);
-					i++;
-					float v3 = Float.parseFloat(args[i]);
-					i++;
-					float v4 = Float.parseFloat(args[i]);
-					stack.push(new Vec4(v1, v2, v3, v4));
-					break;
-				}
-				case 'x':
-				{
-					float mtx[] = new float[16];
-					i++;
-					for(int j = i; j < i + 16; j++) {
-						mtx[j - i] = (float) Float.parseFloat(args[j]);
-					}
-					i += 15;
-					stack.push(new Mtx44(mtx));
-					break;
-				}
-				case 'n':
-				{
-					i++;
-					float n = Float.parseFloat(args[i]);
-					stack.push((Float) n);
-					break;
-				}
-				case 'i':
-				{
-					i++;
-					String path = args[i];
-					stack.push(new FloatImage(ImageIO.read(new File(path))));
-					break;
-				}
-				case 'u':
-					stackDuplicate(stack);
-					break;
-				case 'o':
-				{
-					i++;
-					String path = args[i];
-					Object o1 = stack.pop();
-					FloatImage f1 = (FloatImage) o1;
-					BufferedImage bf = f1.getImage();
-					ImageIO.write(bf, "png", new File(path));
-					break;
+		boolean watch = false;
+		File cacheDir = null;
+		long cacheSize = 1024;
+		int preview = 1;
+		int pngLevel = PngWriter.DEFAULT_LEVEL;
+		boolean refine = false;
+		int workerPort = -1;
+		java.util.List<Integer> workers = new ArrayList<>();
+		int spawn = 0;
+		boolean calibrate = false;
+		File profile = Calibrator.getDefaultProfile();
+		int start = 0;
+		for(; start < args.length && args[start].startsWith("--"); start++) {
+			String option = args[start];
+			if(option.equals("--watch")) {
+				watch = true;
+			} else if(option.equals("--cache") && start + 1 < args.length) {
+				cacheDir = new File(args[++start]);
+			} else if(option.equals("--cache-size") && start + 1 < args.length) {
+				cacheSize = parseOption(option, args[++start], 1, Long.MAX_VALUE >> 20);
+			} else if(option.equals("--preview") && start + 1 < args.length) {
+				preview = (int) parseOption(option, args[++start], 1, Integer.MAX_VALUE);
+			} else if(option.equals("--refine")) {
+				refine = true;
+			} else if(option.equals("--png-level") && start + 1 < args.length) {
+				pngLevel = (int) parseOption(option, args[++start], 0, 9);
+			} else if(option.equals("--calibrate")) {
+				calibrate = true;
+			} else if(option.equals("--profile") && start + 1 < args.length) {
+				profile = new File(args[++start]);
+			} else if(option.equals("--worker") && start + 1 < args.length) {
+				workerPort = (int) parseOption(option, args[++start], 0, 65535);
+			} else if(option.equals("--workers") && start + 1 < args.length) {
+				for(String port : args[++start].split(",")) workers.add((int) parseOption(option, port, 1, 65535));
+			} else if(option.equals("--spawn") && start + 1 < args.length) {
+				spawn = (int) parseOption(option, args[++start], 1, Integer.MAX_VALUE);
+			} else {
+				System.err.println("Unknown option " + option + ".");
+				System.exit(1);
+			}
+		}
+
+		if(calibrate) {
+			if(start < args.length) {
+				System.err.println("--calibrate does not run a program.");
+				System.exit(1);
+			}
+			Calibrator.calibrate(profile, System.out);
+			return;
+		}
+		Calibrator.load(profile);
+
+		if(workerPort >= 0) {
+			if(start < args.length) {
+				System.err.println("--worker takes its programs from the coordinator, not the command line.");
+				System.exit(1);
+			}
+			new Worker(workerPort).run();
+			return;
+		}
+
+		Program program;
+		try {
+			program = Program.compile(args, start);
+		} catch(ProgramException ex) {
+			System.err.println(ex.getMessage());
+			System.exit(1);
+			return;
+		}
+
+		if(watch && cacheDir != null) {
+			System.err.println("--cache cannot be used with --watch.");
+			System.exit(1);
+		}
+
+		if(watch && refine) {
+			System.err.println("--refine cannot be used with --watch.");
+			System.exit(1);
+		}
+
+		if((program.usesStream('i') || program.usesStream('o')) && (watch || cacheDir != null || refine)) {
+			System.err.println("--watch, --cache, and --refine cannot be used with standard input or output.");
+			System.exit(1);
+		}
+
+		SequenceRunner sequence = null;
+		if(SequenceRunner.isSequenceProgram(program)) {
+			if(watch || cacheDir != null) {
+				System.err.println("--watch and --cache cannot be used with frame sequences.");
+				System.exit(1);
+			}
+			try {
+				sequence = SequenceRunner.create(program);
+			} catch(ProgramException ex) {
+				System.err.println(ex.getMessage());
+				System.exit(1);
+			}
+		}
+
+		if(!workers.isEmpty() || spawn > 0) {
+			if(watch || cacheDir != null || preview > 1 || sequence != null
+				|| program.usesStream('i') || program.usesStream('o')) {
+				System.err.println("--workers and --spawn cannot be used with --watch, --cache, --preview, "
+					+ "standard input or output, or frame sequences.");
+				System.exit(1);
+			}
+			Coordinator coordinator;
+			try {
+				coordinator = Coordinator.create(program, Arrays.copyOfRange(args, start, args.length), workers);
+			} catch(ProgramException ex) {
+				System.err.println(ex.getMessage());
+				System.exit(1);
+				return;
+			}
+
+			Session session = openSession(program, pngLevel);
+			java.util.List<Process> processes = new ArrayList<>();
+			try {
+				for(int i = 0; i < spawn; i++) workers.add(Coordinator.spawnWorker(processes));
+				coordinator.run(session);
+			} finally {
+				for(Process p : processes) p.destroy();
+			}
+			if(session.failedChecks > 0) System.exit(2);
+			return;
+		}
+
+		if(watch) {
+			new Watcher(program, preview, pngLevel).run();
+		} else {
+			if(preview > 1) {
+				long t0 = System.nanoTime();
+				Session session = openSession(program, pngLevel);
+				session.subsampling = preview;
+				executeFrames(program, sequence, session);
+				System.err.println("Preview written in " + (System.nanoTime() - t0) / 1000000 + " ms.");
+				if(!refine) {
+					if(session.failedChecks > 0) System.exit(2);
+					return;
 				}
-				case 'w':
-					stackSwap(stack);
-					break;
-				default:
-					System.err.println("Unknown command " + cmd + ".");
-					System.exit(stack.size());
-					break;
 			}
+
+			Session session = openSession(program, pngLevel);
+			if(cacheDir != null) session.cache = new ResultCache(cacheDir, cacheSize << 20);
+			executeFrames(program, sequence, session);
+			if(session.failedChecks > 0) System.exit(2);
+		}
+	}
+
+	/**
+	 * Parses the number given to an option, and exits with a message if it
+	 * is not a whole number in range.
+	 *
+	 * @param option the option
+	 * @param value  the number as given
+	 * @param min    the smallest number allowed
+	 * @param max    the largest number allowed
+	 * @return       the number
+	 */
+	static long parseOption(String option, String value, long min, long max) {
+		try {
+			long n = Long.parseLong(value.trim());
+			if(n >= min && n <= max) return n;
+		} catch(NumberFormatException ex) {
 		}
+		//a maximum this large only guards against overflow
+		String range = max >= Integer.MAX_VALUE ? "of at least " + min : "from " + min + " to " + max;
+		System.err.println(option + " needs a number " + range + ".");
+		System.exit(1);
+		return 0;
+	}
+
+	/**
+	 * Parses the decimal number given to an option, and exits with a message
+	 * if it is not a number of at least a minimum.
+	 *
+	 * @param option the option
+	 * @param value  the number as given
+	 * @param min    the smallest number allowed
+	 * @return       the number
+	 */
+	static double parseDecimalOption(String option, String value, double min) {
+		try {
+			double d = Double.parseDouble(value.trim());
+			if(d >= min && !Double.isInfinite(d)) return d;
+		} catch(NumberFormatException ex) {
+		}
+		System.err.println(option + " needs a number of at least " + min + ".");
+		System.exit(1);
+		return 0;
+	}
+
+	/**
+	 * Create a session for a program, connected to standard input and output
+	 * if the program uses them.
+	 *
+	 * @param program  the program
+	 * @param pngLevel the compression level of PNG outputs
+	 * @return         the session
+	 */
+	private static Session openSession(Program program, int pngLevel) {
+		Session session = new Session();
+		session.pngLevel = pngLevel;
+		if(program.usesStream('i')) {
+			session.stdin = new ImageStreamReader(new FileInputStream(FileDescriptor.in));
+		}
+		if(program.usesStream('o')) {
+			session.stdout = new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16);
+			session.messages = System.err;
+		}
+		return session;
+	}
+
+	/**
+	 * Execute a program once, once for every frame of its frame sequences,
+	 * or once for every frame it reads from standard input until the input
+	 * ends.
+	 *
+	 * @param program  the program
+	 * @param sequence the runner for the program's frame sequences, or null
+	 * @param session  the session
+	 * @throws IOException if an image could not be read or written
+	 */
+	private static void executeFrames(Program program, SequenceRunner sequence, Session session) throws IOException {
+		if(sequence != null) {
+			sequence.run(session);
+			return;
+		}
+		do {
+			program.execute(session);
+			session.frameNumber++;
+		} while(session.stdin != null && session.stdin.hasNext());
 	}
 
 	/**
@@ -151,42 +300,56 @@ public class ImgOp {
 	public static void stackAdd(Stack<Object> stack) {
 		Object o2 = stack.pop();
 		Object o1 = stack.pop();
+		Object r = add(o1, o2);
+		if(r != null) stack.push(r);
+	}
+
+	/**
+	 * Add two stack elements together.
+	 *
+	 * @param o1 the first operand
+	 * @param o2 the second operand
+	 * @return   the result, or null if the operation is not defined for the
+	 *           operand types
+	 */
+	public static Object add(Object o1, Object o2) {
 		if(o1 instanceof FloatImage) { //add to image
 			FloatImage i1 = (FloatImage) o1;
 			if(o2 instanceof FloatImage) {
-				stack.push(i1.add((FloatImage) o2));
+				return i1.add((FloatImage) o2);
 			} else if(o2 instanceof Float) {
 				float f = (float) (Float) o2;
-				stack.push(i1.add(f, f, f, f));
+				return i1.add(f, f, f, f);
 			} else if(o2 instanceof Vec4) {
 				Vec4 v = (Vec4) o2;
-				stack.push(i1.add(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i1.add(v.v[0], v.v[1], v.v[2], v.v[3]);
 			}
 		} else if(o2 instanceof FloatImage) { //add to image
 			FloatImage i2 = (FloatImage) o2;
 			if(o1 instanceof Float) {
 				float f = (float) (Float) o1;
-				stack.push(i2.add(f, f, f, f));
+				return i2.add(f, f, f, f);
 			} else if(o1 instanceof Vec4) {
 				Vec4 v = (Vec4) o1;
-				stack.push(i2.add(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i2.add(v.v[0], v.v[1], v.v[2], v.v[3]);
 			}
 		} else if(o1 instanceof Float) { //floating point add
 			float f1 = (float) (Float) o1;
 			if(o2 instanceof Float) {
-				stack.push(f1 + (float) (Float) o2);
+				return f1 + (float) (Float) o2;
 			}
 		} else if(o1 instanceof Vec4) { //vector add
 			Vec4 v = (Vec4) o1;
 			if(o2 instanceof Vec4) {
-				stack.push(v.add((Vec4) o2));
+				return v.add((Vec4) o2);
 			}
 		} else if(o1 instanceof Mtx44) { //matrix add
 			Mtx44 m = (Mtx44) o1;
 			if(o2 instanceof Mtx44) {
-				stack.push(m.add((Mtx44) o2));
+				return m.add((Mtx44) o2);
 			}
 		}
+		return null;
 	}
 
 	/**
@@ -197,42 +360,56 @@ public class ImgOp {
 	public static void stackSubtract(Stack<Object> stack) {
 		Object o2 = stack.pop();
 		Object o1 = stack.pop();
+		Object r = subtract(o1, o2);
+		if(r != null) stack.push(r);
+	}
+
+	/**
+	 * Subtract two stack elements.
+	 *
+	 * @param o1 the first operand
+	 * @param o2 the second operand
+	 * @return   the result, or null if the operation is not defined for the
+	 *           operand types
+	 */
+	public static Object subtract(Object o1, Object o2) {
 		if(o1 instanceof FloatImage) { //image subtract
 			FloatImage i1 = (FloatImage) o1;
 			if(o2 instanceof FloatImage) {
-				stack.push(i1.sub((FloatImage) o2));
+				return i1.sub((FloatImage) o2);
 			} else if(o2 instanceof Float) {
 				float f = (float) (Float) o2;
-				stack.push(i1.sub(f, f, f, f));
+				return i1.sub(f, f, f, f);
 			} else if(o2 instanceof Vec4) {
 				Vec4 v = (Vec4) o2;
-				stack.push(i1.sub(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i1.sub(v.v[0], v.v[1], v.v[2], v.v[3]);
 			}
 		} else if(o2 instanceof FloatImage) { //image subtract
 			FloatImage i2 = (FloatImage) o2;
 			if(o1 instanceof Float) {
 				float f = (float) (Float) o1;
-				stack.push(i2.sub(f, f, f, f));
+				return i2.sub(f, f, f, f);
 			} else if(o1 instanceof Vec4) {
 				Vec4 v = (Vec4) o1;
-				stack.push(i2.sub(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i2.sub(v.v[0], v.v[1], v.v[2], v.v[3]);
 			}
 		} else if(o1 instanceof Float) { //floating point subtract
 			float f1 = (float) (Float) o1;
 			if(o2 instanceof Float) {
-				stack.push(f1 - (float) (Float) o2);
+				return f1 - (float) (Float) o2;
 			}
 		} else if(o1 instanceof Vec4) { //vector subtract
 			Vec4 v = (Vec4) o1;
 			if(o2 instanceof Vec4) {
-				stack.push(v.sub((Vec4) o2));
+				return v.sub((Vec4) o2);
 			}
 		} else if(o1 instanceof Mtx44) { //matrix subtract
 			Mtx44 m1 = (Mtx44) o1;
 			if(o2 instanceof Mtx44) {
-				stack.push(m1.sub((Mtx44) o2));
+				return m1.sub((Mtx44) o2);
 			}
 		}
+		return null;
 	}
 
 	/**
@@ -243,54 +420,68 @@ public class ImgOp {
 	public static void stackMultiply(Stack<Object> stack) {
 		Object o2 = stack.pop();
 		Object o1 = stack.pop();
+		Object r = multiply(o1, o2);
+		if(r != null) stack.push(r);
+	}
+
+	/**
+	 * Multiply two stack elements.
+	 *
+	 * @param o1 the first operand
+	 * @param o2 the second operand
+	 * @return   the result, or null if the operation is not defined for the
+	 *           operand types
+	 */
+	public static Object multiply(Object o1, Object o2) {
 		if(o1 instanceof FloatImage) { //multiply image
 			FloatImage i1 = (FloatImage) o1;
 			if(o2 instanceof FloatImage) {
-				stack.push(i1.mul((FloatImage) o2));
+				return i1.mul((FloatImage) o2);
 			} else if(o2 instanceof Float) {
 				float f = (float) (Float) o2;
-				stack.push(i1.mul(f, f, f, f));
+				return i1.mul(f, f, f, f);
 			} else if(o2 instanceof Vec4) {
 				Vec4 v = (Vec4) o2;
-				stack.push(i1.mul(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i1.mul(v.v[0], v.v[1], v.v[2], v.v[3]);
 			}
 		} else if(o2 instanceof FloatImage) { //multiply image
 			FloatImage i2 = (FloatImage) o2;
 			if(o1 instanceof Float) {
 				float f = (float) (Float) o1;
-				stack.push(i2.mul(f, f, f, f));
+				return i2.mul(f, f, f, f);
 			} else if(o1 instanceof Vec4) {
 				Vec4 v = (Vec4) o1;
-				stack.push(i2.mul(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i2.mul(v.v[0], v.v[1], v.v[2], v.v[3]);
 			} else if(o1 instanceof Mtx44) {
 				Mtx44 m1 = (Mtx44) o1;
-				stack.push(i2.colorTransform(
+				return i2.colorTransform(
 					m1.m[0], m1.m[1], m1.m[2], m1.m[3],
 					m1.m[4], m1.m[5], m1.m[6], m1.m[7],
 					m1.m[8], m1.m[9], m1.m[10], m1.m[11],
 					m1.m[12], m1.m[13], m1.m[14], m1.m[15]
-				));
+				);
 			}
 		} else if(o1 instanceof Float) { //scalar multiplication
 			float f1 = (float) (Float) o1;
 			if(o2 instanceof Float) {
-				stack.push(f1 * (float) (Float) o2);
+				return f1 * (float) (Float) o2;
 			}
 		} else if(o1 instanceof Vec4) { //vector multiplication
 			Vec4 v = (Vec4) o1;
 			if(o2 instanceof Vec4) {
-				stack.push(v.mul((Vec4) o2));
+				return v.mul((Vec4) o2);
 			}
 		} else if(o1 instanceof Mtx44) { //matrix multiplication
 			Mtx44 m1 = (Mtx44) o1;
 			if(o2 instanceof Mtx44) {
-				stack.push(m1.mul((Mtx44) o2));
+				return m1.mul((Mtx44) o2);
 			} else if(o2 instanceof Vec4) {
-				stack.push(m1.mul((Vec4) o2));
+				return m1.mul((Vec4) o2);
 			} else if(o2 instanceof Float) {
-				stack.push(m1.mul((float) (Float) o2));
+				return m1.mul((float) (Float) o2);
 			}
 		}
+		return null;
 	}
 
 	/**
@@ -301,44 +492,58 @@ public class ImgOp {
 	public static void stackDivide(Stack<Object> stack) {
 		Object o2 = stack.pop();
 		Object o1 = stack.pop();
+		Object r = divide(o1, o2);
+		if(r != null) stack.push(r);
+	}
+
+	/**
+	 * Divide two stack elements.
+	 *
+	 * @param o1 the first operand
+	 * @param o2 the second operand
+	 * @return   the result, or null if the operation is not defined for the
+	 *           operand types
+	 */
+	public static Object divide(Object o1, Object o2) {
 		if(o1 instanceof FloatImage) { //image componentwise division
 			FloatImage i1 = (FloatImage) o1;
 			if(o2 instanceof FloatImage) {
-				stack.push(i1.div((FloatImage) o2));
+				return i1.div((FloatImage) o2);
 			} else if(o2 instanceof Float) {
 				float f = (float) (Float) o2;
-				stack.push(i1.div(f, f, f, f));
+				return i1.div(f, f, f, f);
 			} else if(o2 instanceof Vec4) {
 				Vec4 v = (Vec4) o2;
-				stack.push(i1.div(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i1.div(v.v[0], v.v[1], v.v[2], v.v[3]);
 			}
 		} else if(o2 instanceof FloatImage) { //image componentwise division
 			FloatImage i2 = (FloatImage) o2;
 			if(o1 instanceof Float) {
 				float f = (float) (Float) o1;
-				stack.push(i2.div(f, f, f, f));
+				return i2.div(f, f, f, f);
 			} else if(o1 instanceof Vec4) {
 				Vec4 v = (Vec4) o1;
-				stack.push(i2.div(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return i2.div(v.v[0], v.v[1], v.v[2], v.v[3]);
 			}
 		} else if(o1 instanceof Float) { //scalar division
 			float f1 = (float) (Float) o1;
 			if(o2 instanceof Float) {
-				stack.push(f1 / (float) (Float) o2);
+				return f1 / (float) (Float) o2;
 			}
 		} else if(o1 instanceof Vec4) { //vector componentwise division
 			Vec4 v = (Vec4) o1;
 			if(o2 instanceof Vec4) {
-				stack.push(v.div((Vec4) o2));
+				return v.div((Vec4) o2);
 			} else if(o2 instanceof Float) {
-				stack.push(v.mul(1.0f / (float) (Float) o2));
+				return v.mul(1.0f / (float) (Float) o2);
 			}
 		} else if(o1 instanceof Mtx44) { //matrix componentwise division
 			Mtx44 m1 = (Mtx44) o1;
 			if(o2 instanceof Float) {
-				stack.push(m1.mul(1.0f / (float) (Float) o2));
+				return m1.mul(1.0f / (float) (Float) o2);
 			}
 		}
+		return null;
 	}
 
 	/**
@@ -350,23 +555,37 @@ public class ImgOp {
 	public static void stackPower(Stack<Object> stack) {
 		Object o2 = stack.pop();
 		Object o1 = stack.pop();
+		Object r = power(o1, o2);
+		if(r != null) stack.push(r);
+	}
+
+	/**
+	 * Raise one stack element to the power of another.
+	 *
+	 * @param o1 the first operand
+	 * @param o2 the second operand
+	 * @return   the result, or null if the operation is not defined for the
+	 *           operand types
+	 */
+	public static Object power(Object o1, Object o2) {
 		if(o1 instanceof FloatImage) {
 			FloatImage f1 = (FloatImage) o1;
 			if(o2 instanceof Float) {
 				float f = (float) (Float) o2;
-				stack.push(f1.pow(f, f, f, f));
+				return f1.pow(f, f, f, f);
 			} else if(o2 instanceof Vec4) {
 				Vec4 v = (Vec4) o2;
-				stack.push(f1.pow(v.v[0], v.v[1], v.v[2], v.v[3]));
+				return f1.pow(v.v[0], v.v[1], v.v[2], v.v[3]);
 			} else if(o2 instanceof FloatImage) {
-				stack.push(f1.pow((FloatImage) o2));
+				return f1.pow((FloatImage) o2);
 			}
 		} else if(o1 instanceof Float) {
 			float f1 = (float) (Float) o1;
 			if(o2 instanceof Float) {
-				stack.push((Float) (float) Math.pow(f1, (float) (Float) o2));
+				return (Float) (float) Math.pow(f1, (float) (Float) o2);
 			}
 		}
+		return null;
 	}
 
 	/**
@@ -377,10 +596,21 @@ public class ImgOp {
 	public static void stackClampMin(Stack<Object> stack) {
 		Object o2 = stack.pop();
 		Object o1 = stack.pop();
+		stack.push(clampMin(o1, o2));
+	}
+
+	/**
+	 * Clamp an image's color values below by a vector.
+	 *
+	 * @param o1 the image
+	 * @param o2 the vector of lower bounds
+	 * @return   the clamped image
+	 */
+	public static Object clampMin(Object o1, Object o2) {
 		FloatImage f1 = (FloatImage) o1;
 		Vec4 bound = (Vec4) o2;
-		stack.push(f1.clamp(bound.v[0], Float.MAX_VALUE, bound.v[1],
-			Float.MAX_VALUE, bound.v[2], Float.MAX_VALUE, bound.v[3], Float.MAX_VALUE));
+		return f1.clamp(bound.v[0], Float.MAX_VALUE, bound.v[1],
+			Float.MAX_VALUE, bound.v[2], Float.MAX_VALUE, bound.v[3], Float.MAX_VALUE);
 	}
 
 	/**
@@ -391,11 +621,56 @@ public class ImgOp {
 	public static void stackClampMax(Stack<Object> stack) {
 		Object o2 = stack.pop();
 		Object o1 = stack.pop();
+		stack.push(clampMax(o1, o2));
+	}
+
+	/**
+	 * Clamp an image's color values above by a vector.
+	 *
+	 * @param o1 the image
+	 * @param o2 the vector of upper bounds
+	 * @return   the clamped image
+	 */
+	public static Object clampMax(Object o1, Object o2) {
 		FloatImage f1 = (FloatImage) o1;
 		Vec4 bound = (Vec4) o2;
-		stack.push(f1.clamp(-Float.MAX_VALUE, bound.v[0], -Float.MAX_VALUE, bound.v[1],
-			-Float.MAX_VALUE, bound.v[2], -Float.MAX_VALUE, bound.v[3]));
+		return f1.clamp(-Float.MAX_VALUE, bound.v[0], -Float.MAX_VALUE, bound.v[1],
+			-Float.MAX_VALUE, bound.v[2], -Float.MAX_VALUE, bound.v[3]);
 	}
 
-}
+	/**
+	 * Apply a binary command to two operands.
+	 *
+	 * @param cmd the command character
+	 * @param o1  the first operand
+	 * @param o2  the second operand
+	 * @return    the result, or null if the command is not defined for the
+	 *            operand types
+	 */
+	public static Object apply(char cmd, Object o1, Object o2) {
+		switch(cmd) {
+			case 'a':
+				return add(o1, o2);
+			case 's':
+				return subtract(o1, o2);
+			case 'm':
+				return multiply(o1, o2);
+			case 'd':
+				return divide(o1, o2);
+			case 'p':
+				return power(o1, o2);
+			case 'c':
+				return clampMin(o1, o2);
+			case 'C':
+				return clampMax(o1, o2);
+			case 'E':
+			case 'P':
+			case 'D':
+			case 'S':
+				return new ImageMetrics((FloatImage) o1, (FloatImage) o2).get(cmd);
+			default:
+				return null;
+		}
+	}
 
+}
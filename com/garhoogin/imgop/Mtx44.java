@@ -98,5 +98,19 @@ public class Mtx44 {
 		}
 		return new Mtx44(f);
 	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for(int y = 0; y < 4; y++) {
+			sb.append(y == 0 ? "[" : " ");
+			for(int x = 0; x < 4; x++) {
+				sb.append(this.m[y * 4 + x]);
+				if(x < 3) sb.append(", ");
+			}
+			sb.append(y == 3 ? "]" : "\n");
+		}
+		return sb.toString();
+	}
 }
 
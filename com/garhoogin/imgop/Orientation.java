@@ -0,0 +1,98 @@
+package com.garhoogin.imgop;
+
+/**
+ * The ways an image can be flipped, rotated by a multiple of 90 degrees, or
+ * transposed. Rotations are clockwise.
+ */
+public enum Orientation {
+
+	/**
+	 * Mirror left to right.
+	 */
+	FLIP_HORIZONTAL("h"),
+
+	/**
+	 * Mirror top to bottom.
+	 */
+	FLIP_VERTICAL("v"),
+
+	/**
+	 * Rotate a quarter turn clockwise.
+	 */
+	ROTATE_90("90"),
+
+	/**
+	 * Rotate a half turn.
+	 */
+	ROTATE_180("180"),
+
+	/**
+	 * Rotate three quarter turns clockwise, a quarter turn counterclockwise.
+	 */
+	ROTATE_270("270"),
+
+	/**
+	 * Mirror across the diagonal from the top left corner, swapping rows
+	 * and columns.
+	 */
+	TRANSPOSE("t");
+
+	/**
+	 * The name of the orientation on the command line.
+	 */
+	private final String name;
+
+	private Orientation(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Gets an orientation by its name on the command line, ignoring case.
+	 *
+	 * @param name the name: h, v, 90, 180, 270, or t
+	 * @return     the orientation, or null if there is no such orientation
+	 */
+	public static Orientation forName(String name) {
+		for(Orientation o : values()) {
+			if(o.name.equalsIgnoreCase(name)) return o;
+		}
+		return null;
+	}
+
+	/**
+	 * Determines whether the rows of the result are columns of the source,
+	 * so that its width and height are swapped.
+	 *
+	 * @return true for quarter turns and the transpose
+	 */
+	public boolean swapsAxes() {
+		return this == ROTATE_90 || this == ROTATE_270 || this == TRANSPOSE;
+	}
+
+	/**
+	 * Gets where the pixels of the result come from in the source. The pixel
+	 * at (x, y) of the result is the source pixel at index
+	 * <code>base + x * dx + y * dy</code>.
+	 *
+	 * @param width  the width of the source
+	 * @param height the height of the source
+	 * @return       base, dx, and dy
+	 */
+	int[] getMapping(int width, int height) {
+		switch(this) {
+			case FLIP_HORIZONTAL:
+				return new int[] { width - 1, -1, width };
+			case FLIP_VERTICAL:
+				return new int[] { (height - 1) * width, 1, -width };
+			case ROTATE_90:
+				return new int[] { (height - 1) * width, -width, 1 };
+			case ROTATE_180:
+				return new int[] { (height - 1) * width + width - 1, -1, -width };
+			case ROTATE_270:
+				return new int[] { width - 1, width, -1 };
+			default: //transpose
+				return new int[] { 0, width, 1 };
+		}
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.garhoogin.imgop;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs work on images in parallel by splitting them into bands of
+ * rows that are processed by a shared pool of threads.
+ *
+ * The settings are shared by the whole process and may be changed while work
+ * runs, as when a profile is loaded. Each call reads them once, so a change
+ * only affects calls made after it.
+ */
+class Parallel {
+
+	/**
+	 * The number of threads to use.
+	 */
+	static volatile int threads = Runtime.getRuntime().availableProcessors();
+
+	/**
+	 * The number of rows in a band.
+	 */
+	static volatile int bandRows = 64;
+
+	/**
+	 * The thread pool, created on first use.
+	 */
+	private static ForkJoinPool pool;
+
+	/**
+	 * A task run on one band of an image.
+	 */
+	interface Band {
+
+		/**
+		 * Process a band.
+		 *
+		 * @param band the index of the band
+		 * @param y0   the first row of the band
+		 * @param y1   the row after the last row of the band
+		 */
+		void run(int band, int y0, int y1);
+	}
+
+	private Parallel() {
+	}
+
+	/**
+	 * Gets the thread pool, creating it if the number of threads changed.
+	 *
+	 * @return the thread pool
+	 */
+	private static synchronized ForkJoinPool getPool() {
+		if(pool == null || pool.getParallelism() != threads) {
+			if(pool != null) pool.shutdown();
+			pool = new ForkJoinPool(threads);
+		}
+		return pool;
+	}
+
+	/**
+	 * Gets the number of ranges a sequence of items is split into by
+	 * {@link #forEachRange}.
+	 *
+	 * @param count the number of items
+	 * @param size  the number of items in a range
+	 * @return      the number of ranges
+	 */
+	static int getRangeCount(int count, int size) {
+		return Math.max(1, (count + size - 1) / size);
+	}
+
+	/**
+	 * Run a task on every band of an image and wait for all of them to finish.
+	 * Bands are numbered from the top, so a task may accumulate results into
+	 * an array indexed by band and combine them in order afterwards.
+	 *
+	 * @param height the height of the image
+	 * @param task   the task to run
+	 */
+	static void forEachBand(int height, Band task) {
+		forEachRange(height, bandRows, task);
+	}
+
+	/**
+	 * Run a task on consecutive ranges of a sequence of items and wait for
+	 * all of them to finish. This is {@link #forEachBand} for things other
+	 * than rows, such as tiles.
+	 *
+	 * @param count the number of items
+	 * @param size  the number of items in a range
+	 * @param task  the task to run, given ranges of items instead of rows
+	 */
+	static void forEachRange(final int count, final int size, final Band task) {
+		int nBands = getRangeCount(count, size);
+		if(nBands == 1 || threads <= 1) {
+			for(int b = 0; b < nBands; b++) {
+				task.run(b, b * size, Math.min(count, (b + 1) * size));
+			}
+			return;
+		}
+
+		List<Callable<Void>> tasks = new ArrayList<>(nBands);
+		for(int b = 0; b < nBands; b++) {
+			final int band = b;
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() {
+					task.run(band, band * size, Math.min(count, (band + 1) * size));
+					return null;
+				}
+			});
+		}
+		for(Future<Void> f : getPool().invokeAll(tasks)) {
+			try {
+				f.get();
+			} catch(InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(ex);
+			} catch(ExecutionException ex) {
+				Throwable cause = ex.getCause();
+				if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+				if(cause instanceof Error) throw (Error) cause;
+				throw new IllegalStateException(cause);
+			}
+		}
+	}
+
+}
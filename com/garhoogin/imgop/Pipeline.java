@@ -0,0 +1,489 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.util.*;
+import java.awt.image.*;
+
+/**
+ * This class is an API for running ImgOp operations from Java code without
+ * starting a new process. A Pipeline describes how to compute an image, as
+ * the commands of an ImgOp program would:
+ *
+ * <pre>
+ * BufferedImage out = Pipeline.load(image)
+ *     .mul(swapMatrix)
+ *     .add(new Vec4(0.1f, 0.1f, 0.1f, 0.0f))
+ *     .clamp(new Vec4(0, 0, 0, 0), new Vec4(1, 1, 1, 1))
+ *     .toImage();
+ * </pre>
+ *
+ * Nothing is computed until {@link #toImage}, {@link #toFloatImage}, or
+ * {@link #write} is called. These compile the pipeline into a
+ * {@link Program} and run it exactly as the command line does, so the same
+ * optimizations apply, such as dropping intermediate images as soon as they
+ * are no longer needed.
+ *
+ * Pipelines are immutable: every operation returns a new Pipeline and leaves
+ * the one it was called on unchanged. A Pipeline may therefore be shared
+ * between threads, extended in different ways, and run any number of times
+ * concurrently. Everything that decides the result of a run, such as the
+ * compression level given to {@link #write(File, int)}, belongs to that run.
+ * Only the number of threads and the sizes of tiles and bands, which ImgOp
+ * loads from its tuning profile, are shared by the whole process; they change
+ * how fast a pipeline runs but never its result. Pipelines used more than
+ * once within another pipeline are only computed once.
+ */
+public final class Pipeline {
+
+	/**
+	 * The command character of the instruction producing this value.
+	 */
+	private final char op;
+
+	/**
+	 * The value of a constant, the image of a preloaded input, the mode of a
+	 * composite, or the orientation of a flip or rotation.
+	 */
+	private final Object value;
+
+	/**
+	 * The path of an input image read when the pipeline runs, or null.
+	 */
+	private final String path;
+
+	/**
+	 * The integer arguments of the operation, or null.
+	 */
+	private final int params[];
+
+	/**
+	 * The operands of the operation.
+	 */
+	private final Pipeline args[];
+
+	/**
+	 * The type of the value.
+	 */
+	private final Program.Type type;
+
+	private Pipeline(char op, Object value, String path, int params[], Program.Type type, Pipeline... args) {
+		this.op = op;
+		this.value = value;
+		this.path = path;
+		this.params = params;
+		this.type = type;
+		this.args = args;
+	}
+
+	/**
+	 * Start a pipeline from an image. The image is converted when this method
+	 * is called, so later changes to it do not affect the pipeline.
+	 *
+	 * @param im the image
+	 * @return   the pipeline
+	 */
+	public static Pipeline load(BufferedImage im) {
+		return load(new FloatImage(im));
+	}
+
+	/**
+	 * Start a pipeline from an image.
+	 *
+	 * @param im the image
+	 * @return   the pipeline
+	 */
+	public static Pipeline load(FloatImage im) {
+		if(im == null) throw new NullPointerException("image");
+		return new Pipeline('i', im, null, null, Program.Type.IMAGE);
+	}
+
+	/**
+	 * Start a pipeline from an image file, which is read every time the
+	 * pipeline is run. Any format the <code>i</code> command accepts can be
+	 * read. Standard input cannot be read.
+	 *
+	 * @param f the image file
+	 * @return  the pipeline
+	 * @throws IllegalArgumentException if the path names standard input
+	 */
+	public static Pipeline load(File f) {
+		return new Pipeline('i', null, getFilePath(f), null, Program.Type.IMAGE);
+	}
+
+	/**
+	 * Gets the path of a file read or written by a pipeline.
+	 *
+	 * @param f the file
+	 * @return  the path
+	 * @throws IllegalArgumentException if the path names standard input or
+	 *                                  output, as the command line's
+	 *                                  <code>-</code> does
+	 */
+	private static String getFilePath(File f) {
+		if(f == null) throw new NullPointerException("file");
+		String path = f.getPath();
+		if(FloatImageIO.isStream(path)) {
+			throw new IllegalArgumentException("\"" + path + "\" names a standard stream, which a pipeline cannot use");
+		}
+		return path;
+	}
+
+	/**
+	 * Creates a scalar constant.
+	 *
+	 * @param f the scalar
+	 * @return  the constant
+	 */
+	private static Pipeline constant(float f) {
+		return new Pipeline('n', f, null, null, Program.Type.SCALAR);
+	}
+
+	/**
+	 * Creates a vector constant, copying the vector.
+	 *
+	 * @param v the vector
+	 * @return  the constant
+	 */
+	private static Pipeline constant(Vec4 v) {
+		return new Pipeline('v', new Vec4(v.v[0], v.v[1], v.v[2], v.v[3]), null, null, Program.Type.VECTOR);
+	}
+
+	/**
+	 * Creates a matrix constant, copying the matrix.
+	 *
+	 * @param m the matrix
+	 * @return  the constant
+	 */
+	private static Pipeline constant(Mtx44 m) {
+		return new Pipeline('x', new Mtx44(m.m.clone()), null, null, Program.Type.MATRIX);
+	}
+
+	/**
+	 * Applies a binary command to two values.
+	 *
+	 * @param op the command character
+	 * @param a  the first operand
+	 * @param b  the second operand
+	 * @return   the result
+	 */
+	private static Pipeline binary(char op, Pipeline a, Pipeline b) {
+		Program.Type type = Program.getResultType(op, a.type, b.type);
+		if(type == null) throw new IllegalArgumentException("command " + op + " is not defined for its operands");
+		return new Pipeline(op, null, null, null, type, a, b);
+	}
+
+	/**
+	 * Add a scalar to every channel of the image.
+	 *
+	 * @param s the scalar
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline add(float s) {
+		return binary('a', this, constant(s));
+	}
+
+	/**
+	 * Add a vector to the channels of the image.
+	 *
+	 * @param v the vector
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline add(Vec4 v) {
+		return binary('a', this, constant(v));
+	}
+
+	/**
+	 * Add another image to this one.
+	 *
+	 * @param p the other image
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline add(Pipeline p) {
+		return binary('a', this, p);
+	}
+
+	/**
+	 * Subtract a scalar from every channel of the image.
+	 *
+	 * @param s the scalar
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline sub(float s) {
+		return binary('s', this, constant(s));
+	}
+
+	/**
+	 * Subtract a vector from the channels of the image.
+	 *
+	 * @param v the vector
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline sub(Vec4 v) {
+		return binary('s', this, constant(v));
+	}
+
+	/**
+	 * Subtract another image from this one.
+	 *
+	 * @param p the other image
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline sub(Pipeline p) {
+		return binary('s', this, p);
+	}
+
+	/**
+	 * Multiply every channel of the image by a scalar.
+	 *
+	 * @param s the scalar
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline mul(float s) {
+		return binary('m', this, constant(s));
+	}
+
+	/**
+	 * Multiply the channels of the image by a vector.
+	 *
+	 * @param v the vector
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline mul(Vec4 v) {
+		return binary('m', this, constant(v));
+	}
+
+	/**
+	 * Transform the color of every pixel by a matrix.
+	 *
+	 * @param m the matrix
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline mul(Mtx44 m) {
+		return binary('m', constant(m), this);
+	}
+
+	/**
+	 * Multiply this image by another image.
+	 *
+	 * @param p the other image
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline mul(Pipeline p) {
+		return binary('m', this, p);
+	}
+
+	/**
+	 * Divide every channel of the image by a scalar.
+	 *
+	 * @param s the scalar
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline div(float s) {
+		return binary('d', this, constant(s));
+	}
+
+	/**
+	 * Divide the channels of the image by a vector.
+	 *
+	 * @param v the vector
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline div(Vec4 v) {
+		return binary('d', this, constant(v));
+	}
+
+	/**
+	 * Divide this image by another image.
+	 *
+	 * @param p the other image
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline div(Pipeline p) {
+		return binary('d', this, p);
+	}
+
+	/**
+	 * Raise every channel of the image to a power.
+	 *
+	 * @param s the power
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline pow(float s) {
+		return binary('p', this, constant(s));
+	}
+
+	/**
+	 * Raise the channels of the image to the powers in a vector.
+	 *
+	 * @param v the powers
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline pow(Vec4 v) {
+		return binary('p', this, constant(v));
+	}
+
+	/**
+	 * Raise this image to the powers in another image.
+	 *
+	 * @param p the other image
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline pow(Pipeline p) {
+		return binary('p', this, p);
+	}
+
+	/**
+	 * Clamp the channels of the image to lower bounds.
+	 *
+	 * @param min the lower bounds
+	 * @return    the resulting pipeline
+	 */
+	public Pipeline clampMin(Vec4 min) {
+		return binary('c', this, constant(min));
+	}
+
+	/**
+	 * Clamp the channels of the image to upper bounds.
+	 *
+	 * @param max the upper bounds
+	 * @return    the resulting pipeline
+	 */
+	public Pipeline clampMax(Vec4 max) {
+		return binary('C', this, constant(max));
+	}
+
+	/**
+	 * Clamp the channels of the image to lower and upper bounds.
+	 *
+	 * @param min the lower bounds
+	 * @param max the upper bounds
+	 * @return    the resulting pipeline
+	 */
+	public Pipeline clamp(Vec4 min, Vec4 max) {
+		return this.clampMin(min).clampMax(max);
+	}
+
+	/**
+	 * Flip, rotate, or transpose the image.
+	 *
+	 * @param o the orientation
+	 * @return  the resulting pipeline
+	 */
+	public Pipeline reorient(Orientation o) {
+		if(o == null) throw new NullPointerException("orientation");
+		return new Pipeline('r', o, null, null, Program.Type.IMAGE, this);
+	}
+
+	/**
+	 * Composite another image onto this one.
+	 *
+	 * @param src  the image to composite onto this one
+	 * @param mode the compositing operator or blend mode
+	 * @param x    the x position of the source in this image
+	 * @param y    the y position of the source in this image
+	 * @return     the resulting pipeline
+	 */
+	public Pipeline composite(Pipeline src, BlendMode mode, int x, int y) {
+		if(mode == null) throw new NullPointerException("mode");
+		Program.Type type = Program.getResultType('b', this.type, src.type);
+		if(type == null) throw new IllegalArgumentException("command b is not defined for its operands");
+		return new Pipeline('b', mode, null, new int[] { x, y }, type, this, src);
+	}
+
+	/**
+	 * Compiles the values this pipeline depends on into instructions, each
+	 * shared value once.
+	 *
+	 * @param code the instructions so far
+	 * @param pcs  the index of the instruction of each value compiled so far
+	 * @return     the index of the instruction producing this value
+	 */
+	private int compile(List<Program.Instruction> code, Map<Pipeline, Integer> pcs) {
+		Integer pc = pcs.get(this);
+		if(pc != null) return pc;
+
+		int srcs[] = new int[this.args.length];
+		for(int i = 0; i < srcs.length; i++) {
+			srcs[i] = this.args[i].compile(code, pcs);
+		}
+		Program.Instruction ins = new Program.Instruction(this.op, code.size(), srcs);
+		ins.value = this.value;
+		ins.path = this.path;
+		ins.params = this.params;
+		ins.type = this.type;
+		pcs.put(this, code.size());
+		Program.append(code, ins);
+		return code.size() - 1;
+	}
+
+	/**
+	 * Compiles this pipeline into a program.
+	 *
+	 * @param out the file to write the result to, or null to only compute it
+	 * @return    the program
+	 */
+	private Program compile(File out) {
+		List<Program.Instruction> code = new ArrayList<>();
+		int pc = this.compile(code, new IdentityHashMap<Pipeline, Integer>());
+		if(out != null) {
+			Program.Instruction ins = new Program.Instruction('o', code.size(), new int[] { pc });
+			ins.path = getFilePath(out);
+			Program.append(code, ins);
+		}
+		return new Program(code.toArray(new Program.Instruction[code.size()]), 0);
+	}
+
+	/**
+	 * Run the pipeline.
+	 *
+	 * @return the resulting image
+	 * @throws IOException if an input image could not be read
+	 */
+	public FloatImage toFloatImage() throws IOException {
+		Program program = this.compile((File) null);
+		return (FloatImage) program.execute(new Session(), program.code.length - 1);
+	}
+
+	/**
+	 * Run the pipeline and convert the result to an 8-bit image.
+	 *
+	 * @return the resulting image
+	 * @throws IOException if an input image could not be read
+	 */
+	public BufferedImage toImage() throws IOException {
+		return this.toFloatImage().getImage();
+	}
+
+	/**
+	 * Run the pipeline and write the result to a file, choosing the format by
+	 * the file extension as the <code>o</code> command does. PNG files are
+	 * written at the default compression level.
+	 *
+	 * @param f the file to write
+	 * @throws IOException if an input image could not be read or the file
+	 *                     could not be written
+	 */
+	public void write(File f) throws IOException {
+		this.write(f, PngWriter.DEFAULT_LEVEL);
+	}
+
+	/**
+	 * Run the pipeline and write the result to a file, choosing the format by
+	 * the file extension as the <code>o</code> command does.
+	 *
+	 * @param f        the file to write
+	 * @param pngLevel the compression level of a PNG file, from 0 for none to
+	 *                 9 for the smallest file
+	 * @throws IOException if an input image could not be read or the file
+	 *                     could not be written
+	 * @throws IllegalArgumentException if the path names standard output
+	 */
+	public void write(File f, int pngLevel) throws IOException {
+		if(f == null) throw new NullPointerException("file");
+		if(pngLevel < 0 || pngLevel > 9) throw new IllegalArgumentException("PNG level " + pngLevel + " is not from 0 to 9");
+		Session session = new Session();
+		session.pngLevel = pngLevel;
+		this.compile(f).execute(session);
+	}
+
+}
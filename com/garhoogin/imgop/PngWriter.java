@@ -0,0 +1,318 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.*;
+
+/**
+ * This class writes 8-bit RGB and RGBA PNG images using all threads. The
+ * image is cut into bands of rows that are filtered and deflated separately
+ * and then joined into a single zlib stream, so the file is an ordinary PNG
+ * that any decoder reads.
+ *
+ * Each band but the last is ended with a sync flush, which pads the deflate
+ * stream to a byte boundary without ending it, and is compressed with the
+ * last 32 KiB of the band before it as the dictionary, so matches can reach
+ * back across the boundary as they would in a single stream. The Adler-32
+ * checksums of the bands are combined at the end without reading the data
+ * again.
+ */
+class PngWriter {
+
+	/**
+	 * The PNG file signature.
+	 */
+	private static final byte PNG_SIGNATURE[] = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+
+	/**
+	 * The least number of filtered bytes in a band, large enough that the
+	 * cost of a sync flush is lost in the noise.
+	 */
+	private static final int BAND_SIZE = 1 << 17;
+
+	/**
+	 * The size of the deflate window, and so of the dictionary of a band.
+	 */
+	private static final int WINDOW_SIZE = 1 << 15;
+
+	/**
+	 * The modulus of Adler-32.
+	 */
+	private static final int ADLER_BASE = 65521;
+
+	/**
+	 * The version of the files this class writes, part of the cache key of a
+	 * PNG output so that files from an older encoder are not served for it.
+	 * Increase it whenever the bytes written for an image change.
+	 */
+	static final int VERSION = 1;
+
+	/**
+	 * The compression level used unless another is asked for, from 0 for
+	 * none to 9 for the smallest files.
+	 */
+	static final int DEFAULT_LEVEL = 4;
+
+	private PngWriter() {
+	}
+
+	/**
+	 * Write an image as PNG. The alpha channel is left out if it is
+	 * constant and opaque. The stream is not flushed or closed.
+	 *
+	 * @param im    the image
+	 * @param out   the stream to write to
+	 * @param level the compression level, from 0 for none to 9 for the
+	 *              smallest files
+	 * @throws IOException if the stream could not be written
+	 */
+	static void write(final FloatImage im, OutputStream out, final int level) throws IOException {
+		final boolean hasAlpha = im.hasAlpha();
+		final int nChannels = hasAlpha ? 4 : 3;
+		final int stride = im.width * nChannels + 1; //filter type and samples
+		final int rowsPerBand = Math.max(1, BAND_SIZE / stride);
+		final int nBands = Math.max(1, (im.height + rowsPerBand - 1) / rowsPerBand);
+		final byte parts[][] = new byte[nBands][];
+		final long adlers[] = new long[nBands];
+		final long lengths[] = new long[nBands];
+		Parallel.forEachRange(im.height, rowsPerBand, new Parallel.Band() {
+			@Override
+			public void run(int band, int y0, int y1) {
+				//filter the end of the band before again for the dictionary
+				int dictRows = Math.min(y0, (WINDOW_SIZE + stride - 1) / stride);
+				byte filtered[] = filterRows(im, nChannels, y0 - dictRows, y1, level);
+				int start = dictRows * stride, length = filtered.length - start;
+
+				Deflater deflater = new Deflater(level, true);
+				try {
+					if(dictRows > 0) {
+						int dictLength = Math.min(start, WINDOW_SIZE);
+						deflater.setDictionary(filtered, start - dictLength, dictLength);
+					}
+					deflater.setInput(filtered, start, length);
+					parts[band] = deflate(deflater, band == nBands - 1);
+				} finally {
+					deflater.end();
+				}
+
+				Adler32 adler = new Adler32();
+				adler.update(filtered, start, length);
+				adlers[band] = adler.getValue();
+				lengths[band] = length;
+			}
+		});
+
+		long adler = adlers[0];
+		for(int b = 1; b < nBands; b++) adler = combineAdler(adler, adlers[b], lengths[b]);
+
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.write(PNG_SIGNATURE);
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		DataOutputStream hos = new DataOutputStream(header);
+		hos.writeInt(im.width);
+		hos.writeInt(im.height);
+		hos.writeByte(8); //bit depth
+		hos.writeByte(hasAlpha ? 6 : 2); //truecolor with or without alpha
+		hos.writeByte(0); //deflate
+		hos.writeByte(0); //adaptive filtering
+		hos.writeByte(0); //no interlace
+		writeChunk(dos, "IHDR", header.toByteArray());
+
+		for(int b = 0; b < nBands; b++) {
+			byte before[] = b == 0 ? getZlibHeader(level) : new byte[0];
+			byte after[] = new byte[0];
+			if(b == nBands - 1) {
+				after = new byte[] { (byte) (adler >>> 24), (byte) (adler >>> 16), (byte) (adler >>> 8), (byte) adler };
+			}
+			writeChunk(dos, "IDAT", before, parts[b], after);
+			parts[b] = null;
+		}
+		writeChunk(dos, "IEND");
+	}
+
+	/**
+	 * Converts rows of an image to 8 bits and filters them. The row above
+	 * the first is read too so the first row can be filtered against it.
+	 *
+	 * @param im        the image
+	 * @param nChannels the number of channels to write, 3 or 4
+	 * @param y0        the first row
+	 * @param y1        the row after the last row
+	 * @param level     the compression level
+	 * @return          the filter type and filtered samples of every row
+	 */
+	private static byte[] filterRows(FloatImage im, int nChannels, int y0, int y1, int level) {
+		int rowSize = im.width * nChannels;
+		byte filtered[] = new byte[(y1 - y0) * (rowSize + 1)];
+		byte prev[] = new byte[rowSize];
+		byte cur[] = new byte[rowSize];
+		byte trial[][] = new byte[5][rowSize];
+		if(y0 > 0) getRow(im, nChannels, y0 - 1, prev);
+
+		for(int y = y0; y < y1; y++) {
+			getRow(im, nChannels, y, cur);
+			int pos = (y - y0) * (rowSize + 1);
+			int type = level == 0 ? 0 : chooseFilter(prev, cur, nChannels, trial);
+			filtered[pos] = (byte) type;
+			if(type == 0) System.arraycopy(cur, 0, filtered, pos + 1, rowSize);
+			else System.arraycopy(trial[type], 0, filtered, pos + 1, rowSize);
+
+			byte tmp[] = prev;
+			prev = cur;
+			cur = tmp;
+		}
+		return filtered;
+	}
+
+	/**
+	 * Converts a row of an image to interleaved 8-bit samples.
+	 *
+	 * @param im        the image
+	 * @param nChannels the number of channels to write, 3 or 4
+	 * @param y         the row
+	 * @param dst       the samples
+	 */
+	private static void getRow(FloatImage im, int nChannels, int y, byte dst[]) {
+		int width = im.width, off = y * width;
+		for(int c = 0; c < nChannels; c++) {
+			float p[] = im.planes[c];
+			if(p == null) {
+				byte b = (byte) FloatImage.denormalize(im.constants[c]);
+				for(int x = 0; x < width; x++) dst[x * nChannels + c] = b;
+			} else {
+				for(int x = 0; x < width; x++) dst[x * nChannels + c] = (byte) FloatImage.denormalize(p[off + x]);
+			}
+		}
+	}
+
+	/**
+	 * Filters a row with the sub, up, average, and Paeth filters and picks the
+	 * filter whose output has the smallest sum of absolute values, taking the
+	 * bytes as signed. This is the heuristic the PNG specification suggests,
+	 * and it favors rows of small differences that deflate well.
+	 *
+	 * @param prev  the row above, zero for the first row
+	 * @param cur   the row
+	 * @param bpp   the number of bytes in a pixel
+	 * @param trial the outputs of filters 1 to 4 are written to elements 1
+	 *              to 4
+	 * @return      the filter type, 0 to 4
+	 */
+	private static int chooseFilter(byte prev[], byte cur[], int bpp, byte trial[][]) {
+		int n = cur.length;
+		long sums[] = new long[5];
+		for(int i = 0; i < n; i++) {
+			int x = cur[i] & 0xFF;
+			int a = i >= bpp ? cur[i - bpp] & 0xFF : 0;
+			int b = prev[i] & 0xFF;
+			int c = i >= bpp ? prev[i - bpp] & 0xFF : 0;
+
+			int p = a + b - c;
+			int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+			int paeth = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+
+			byte f0 = (byte) x;
+			byte f1 = trial[1][i] = (byte) (x - a);
+			byte f2 = trial[2][i] = (byte) (x - b);
+			byte f3 = trial[3][i] = (byte) (x - ((a + b) >>> 1));
+			byte f4 = trial[4][i] = (byte) (x - paeth);
+			sums[0] += Math.abs(f0);
+			sums[1] += Math.abs(f1);
+			sums[2] += Math.abs(f2);
+			sums[3] += Math.abs(f3);
+			sums[4] += Math.abs(f4);
+		}
+
+		int best = 0;
+		for(int f = 1; f < 5; f++) {
+			if(sums[f] < sums[best]) best = f;
+		}
+		return best;
+	}
+
+	/**
+	 * Compresses all of a deflater's input.
+	 *
+	 * @param deflater the deflater, with its input set
+	 * @param last     true to end the stream, false to end with a sync flush
+	 * @return         the compressed data
+	 */
+	private static byte[] deflate(Deflater deflater, boolean last) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte buf[] = new byte[1 << 16];
+		if(last) {
+			deflater.finish();
+			while(!deflater.finished()) {
+				out.write(buf, 0, deflater.deflate(buf));
+			}
+		} else {
+			//a full buffer may mean there is more output waiting
+			int n;
+			do {
+				n = deflater.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+				out.write(buf, 0, n);
+			} while(n == buf.length);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Gets the zlib header for a deflate stream with a 32 KiB window.
+	 *
+	 * @param level the compression level
+	 * @return      the two header bytes
+	 */
+	private static byte[] getZlibHeader(int level) {
+		int cmf = 0x78;
+		int flevel = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+		int flg = flevel << 6;
+		flg += 31 - ((cmf << 8) + flg) % 31;
+		return new byte[] { (byte) cmf, (byte) flg };
+	}
+
+	/**
+	 * Computes the Adler-32 checksum of two pieces of data one after the
+	 * other from the checksums of the pieces.
+	 *
+	 * @param adler1  the checksum of the first piece
+	 * @param adler2  the checksum of the second piece
+	 * @param length2 the length of the second piece
+	 * @return        the checksum of both pieces
+	 */
+	static long combineAdler(long adler1, long adler2, long length2) {
+		long rem = length2 % ADLER_BASE;
+		long sum1 = adler1 & 0xFFFF;
+		long sum2 = rem * sum1 % ADLER_BASE;
+		sum1 += (adler2 & 0xFFFF) + ADLER_BASE - 1;
+		sum2 += ((adler1 >>> 16) & 0xFFFF) + ((adler2 >>> 16) & 0xFFFF) + ADLER_BASE - rem;
+		if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if(sum1 >= ADLER_BASE) sum1 -= ADLER_BASE;
+		if(sum2 >= 2 * ADLER_BASE) sum2 -= 2 * ADLER_BASE;
+		if(sum2 >= ADLER_BASE) sum2 -= ADLER_BASE;
+		return sum1 | (sum2 << 16);
+	}
+
+	/**
+	 * Writes a PNG chunk whose data is made of several pieces.
+	 *
+	 * @param out    the stream
+	 * @param type   the chunk type
+	 * @param pieces the pieces of the chunk data
+	 * @throws IOException if the stream could not be written
+	 */
+	private static void writeChunk(DataOutputStream out, String type, byte[]... pieces) throws IOException {
+		byte typeBytes[] = type.getBytes(StandardCharsets.US_ASCII);
+		int length = 0;
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		for(byte piece[] : pieces) {
+			length += piece.length;
+			crc.update(piece);
+		}
+		out.writeInt(length);
+		out.write(typeBytes);
+		for(byte piece[] : pieces) out.write(piece);
+		out.writeInt((int) crc.getValue());
+	}
+
+}
@@ -0,0 +1,898 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * This class represents a compiled ImgOp program. Compiling parses the whole
+ * command line up front and simulates the stack with the types of its
+ * elements instead of their values, so malformed programs and commands
+ * applied to unsupported operand types are rejected before any image is
+ * decoded.
+ *
+ * The stack commands <code>u</code> and <code>w</code> only rearrange which
+ * values the following commands operate on, so they are resolved during
+ * compilation. The compiled program is a list of instructions, each of which
+ * refers to the instructions producing its operands. A compiled program may
+ * be executed any number of times.
+ */
+public class Program {
+
+	/**
+	 * The types of values that may be on the stack.
+	 */
+	enum Type {
+		SCALAR, VECTOR, MATRIX, IMAGE
+	}
+
+	/**
+	 * A single value producing or consuming instruction.
+	 */
+	static class Instruction {
+
+		/**
+		 * The command character.
+		 */
+		char op;
+
+		/**
+		 * The index of the command line argument this instruction was
+		 * compiled from.
+		 */
+		int position;
+
+		/**
+		 * The file path of an <code>i</code> or <code>o</code> command, or
+		 * null for an <code>i</code> instruction with a preloaded image.
+		 */
+		String path;
+
+		/**
+		 * The value pushed by an <code>n</code>, <code>v</code>, or
+		 * <code>x</code> command, the preloaded image of an <code>i</code>
+		 * instruction, the mode of a <code>b</code> command, or the orientation
+		 * of an <code>r</code> command.
+		 */
+		Object value;
+
+		/**
+		 * The integer arguments of a command, such as the position of a
+		 * <code>b</code> command's source image.
+		 */
+		int params[];
+
+		/**
+		 * The indices of the instructions producing this instruction's
+		 * operands.
+		 */
+		int args[];
+
+		/**
+		 * The type of the value this instruction produces, or null if it does
+		 * not produce one.
+		 */
+		Type type;
+
+		/**
+		 * The index of the last instruction that uses this instruction's
+		 * value, or -1 if it is never used.
+		 */
+		int lastUse = -1;
+
+		/**
+		 * The indices of the <code>i</code> instructions whose images this
+		 * instruction's value depends on.
+		 */
+		BitSet inputs = new BitSet();
+
+		/**
+		 * For an <code>E</code>, <code>P</code>, <code>D</code>, or
+		 * <code>S</code> instruction, the index of the first instruction
+		 * comparing the same two images, under which their comparison is kept
+		 * while the program runs; -1 for other instructions.
+		 */
+		int comparison = -1;
+
+		/**
+		 * Whether no later instruction compares the same two images, so the
+		 * comparison need not be kept after this one.
+		 */
+		boolean lastComparison;
+
+		Instruction(char op, int position, int args[]) {
+			this.op = op;
+			this.position = position;
+			this.args = args;
+		}
+	}
+
+	/**
+	 * The compiled instructions in execution order.
+	 */
+	final Instruction code[];
+
+	/**
+	 * The maximum depth the stack reaches.
+	 */
+	final int maxDepth;
+
+	/**
+	 * The index of the last instruction of the tiled run each instruction
+	 * belongs to, or -1 for instructions executed on their own.
+	 */
+	private final int runEnd[];
+
+	/**
+	 * The indices of the instructions of each tiled run, stored at the index
+	 * of the run's last instruction.
+	 */
+	private final int runs[][];
+
+	Program(Instruction code[], int maxDepth) {
+		this.code = code;
+		this.maxDepth = maxDepth;
+		this.runEnd = new int[code.length];
+		this.runs = new int[code.length][];
+		this.findTiledRuns();
+		this.findComparisons();
+	}
+
+	/**
+	 * Links the instructions that compare the same two images, so that the
+	 * error and difference measures of a pair are computed in one pass
+	 * however many of them are asked for, even when the images are read
+	 * again for each.
+	 */
+	private void findComparisons() {
+		for(int pc = 0; pc < this.code.length; pc++) {
+			Instruction ins = this.code[pc];
+			if(!isComparison(ins.op)) continue;
+			ins.comparison = pc;
+			ins.lastComparison = true;
+			for(int prev = pc - 1; prev >= 0; prev--) {
+				Instruction p = this.code[prev];
+				if(isComparison(p.op) && this.isSameImage(p.args[0], ins.args[0])
+						&& this.isSameImage(p.args[1], ins.args[1])) {
+					ins.comparison = p.comparison;
+					p.lastComparison = false;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines whether two instructions produce the same image: they are
+	 * the same instruction, or both read the same file.
+	 *
+	 * @param pc1 the index of the first instruction
+	 * @param pc2 the index of the second instruction
+	 * @return    true if the images are known to be the same
+	 */
+	private boolean isSameImage(int pc1, int pc2) {
+		if(pc1 == pc2) return true;
+		Instruction i1 = this.code[pc1], i2 = this.code[pc2];
+		if(i1.op != 'i' || i2.op != 'i') return false;
+		if(i1.path == null) return i2.path == null && i1.value == i2.value;
+		return i1.path.equals(i2.path) && !FloatImageIO.isStream(i1.path);
+	}
+
+	/**
+	 * Determines whether a command compares two images.
+	 *
+	 * @param op the command character
+	 * @return   true for <code>E</code>, <code>P</code>, <code>D</code>, and
+	 *           <code>S</code>
+	 */
+	private static boolean isComparison(char op) {
+		return op == 'E' || op == 'P' || op == 'D' || op == 'S';
+	}
+
+	/**
+	 * Finds the runs of instructions to execute tile by tile: stretches of
+	 * pixel by pixel image operations with at least two of them, which may
+	 * have inputs and constants among them but nothing that writes or prints.
+	 * A flip or rotation of an image computed in the run starts a new run.
+	 */
+	private void findTiledRuns() {
+		Arrays.fill(this.runEnd, -1);
+		int first = -1, last = -1, nFusable = 0;
+		for(int pc = 0; pc <= this.code.length; pc++) {
+			Instruction ins = pc < this.code.length ? this.code[pc] : null;
+			if(ins != null && TiledExecutor.isFusable(ins)) {
+				if(first != -1 && TiledExecutor.readsOtherPixels(ins) && ins.args[0] >= first
+						&& TiledExecutor.isFusable(this.code[ins.args[0]])) {
+					//its operand is needed in full, so it starts a new run
+					this.addTiledRun(first, last, nFusable);
+					first = -1;
+					nFusable = 0;
+				}
+				if(first == -1) first = pc;
+				last = pc;
+				nFusable++;
+				continue;
+			}
+			if(ins != null && TiledExecutor.isIndependent(ins, this.code)) continue;
+
+			this.addTiledRun(first, last, nFusable);
+			first = last = -1;
+			nFusable = 0;
+		}
+	}
+
+	/**
+	 * Records a run of instructions to execute tile by tile if it has enough
+	 * image operations to be worth it.
+	 *
+	 * @param first    the index of the first image operation of the run
+	 * @param last     the index of the last image operation of the run
+	 * @param nFusable the number of image operations in the run
+	 */
+	private void addTiledRun(int first, int last, int nFusable) {
+		if(nFusable < 2) return;
+		int run[] = new int[last - first + 1];
+		for(int i = 0; i < run.length; i++) {
+			run[i] = first + i;
+			this.runEnd[first + i] = last;
+		}
+		this.runs[last] = run;
+	}
+
+	/**
+	 * Gets the number of arguments a command takes from the command line.
+	 *
+	 * @param op the command character
+	 * @return   the number of arguments, or -1 if the command is unknown
+	 */
+	private static int getArgumentCount(char op) {
+		switch(op) {
+			case 'a':
+			case 's':
+			case 'm':
+			case 'd':
+			case 'p':
+			case 'c':
+			case 'C':
+			case 'E':
+			case 'P':
+			case 'D':
+			case 'S':
+			case 't':
+			case 'T':
+			case 'e':
+			case 'u':
+			case 'w':
+				return 0;
+			case 'n':
+			case 'i':
+			case 'o':
+			case 'r':
+				return 1;
+			case 'b':
+				return 3;
+			case 'v':
+				return 4;
+			case 'x':
+				return 16;
+			default:
+				return -1;
+		}
+	}
+
+	/**
+	 * Maps alternate spellings of commands to their canonical command
+	 * character.
+	 *
+	 * @param c the first character of the command
+	 * @return  the canonical command character
+	 */
+	private static char canonicalize(char c) {
+		switch(c) {
+			case '+':
+				return 'a';
+			case '-':
+				return 's';
+			case '*':
+				return 'm';
+			case '/':
+				return 'd';
+			case '^':
+				return 'p';
+			default:
+				return c;
+		}
+	}
+
+	/**
+	 * Determines the type of the result of a binary command. This mirrors the
+	 * operand combinations supported by {@link ImgOp#apply}.
+	 *
+	 * @param op the command character
+	 * @param t1 the type of the first operand
+	 * @param t2 the type of the second operand
+	 * @return   the result type, or null if the command is not defined for the
+	 *           operand types
+	 */
+	static Type getResultType(char op, Type t1, Type t2) {
+		switch(op) {
+			case 'a':
+			case 's':
+				if(t1 == Type.IMAGE && t2 != Type.MATRIX) return Type.IMAGE;
+				if(t2 == Type.IMAGE && (t1 == Type.SCALAR || t1 == Type.VECTOR)) return Type.IMAGE;
+				if(t1 == t2) return t1;
+				return null;
+			case 'm':
+				if(t1 == Type.IMAGE && t2 != Type.MATRIX) return Type.IMAGE;
+				if(t2 == Type.IMAGE) return Type.IMAGE;
+				if(t1 == t2) return t1;
+				if(t1 == Type.MATRIX && t2 == Type.VECTOR) return Type.VECTOR;
+				if(t1 == Type.MATRIX && t2 == Type.SCALAR) return Type.MATRIX;
+				return null;
+			case 'd':
+				if(t1 == Type.IMAGE && t2 != Type.MATRIX) return Type.IMAGE;
+				if(t2 == Type.IMAGE && (t1 == Type.SCALAR || t1 == Type.VECTOR)) return Type.IMAGE;
+				if(t1 == t2 && t1 != Type.MATRIX) return t1;
+				if((t1 == Type.VECTOR || t1 == Type.MATRIX) && t2 == Type.SCALAR) return t1;
+				return null;
+			case 'p':
+				if(t1 == Type.IMAGE && t2 != Type.MATRIX) return Type.IMAGE;
+				if(t1 == Type.SCALAR && t2 == Type.SCALAR) return Type.SCALAR;
+				return null;
+			case 'c':
+			case 'C':
+				if(t1 == Type.IMAGE && t2 == Type.VECTOR) return Type.IMAGE;
+				return null;
+			case 'E':
+			case 'P':
+			case 'D':
+			case 'S':
+				if(t1 == Type.IMAGE && t2 == Type.IMAGE) return Type.VECTOR;
+				return null;
+			case 'b':
+				if(t1 == Type.IMAGE && t2 == Type.IMAGE) return Type.IMAGE;
+				return null;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Parses a number argument.
+	 *
+	 * @param args     the command line
+	 * @param position the index of the argument to parse
+	 * @return         the number
+	 * @throws ProgramException if the argument is not a number
+	 */
+	private static float parseNumber(String args[], int position) throws ProgramException {
+		try {
+			return Float.parseFloat(args[position]);
+		} catch(NumberFormatException ex) {
+			throw new ProgramException(position, "expected a number but got \"" + args[position] + "\"");
+		}
+	}
+
+	/**
+	 * Parses an integer argument.
+	 *
+	 * @param args     the command line
+	 * @param position the index of the argument to parse
+	 * @return         the integer
+	 * @throws ProgramException if the argument is not an integer
+	 */
+	private static int parseInteger(String args[], int position) throws ProgramException {
+		try {
+			return Integer.parseInt(args[position]);
+		} catch(NumberFormatException ex) {
+			throw new ProgramException(position, "expected an integer but got \"" + args[position] + "\"");
+		}
+	}
+
+	/**
+	 * Compiles a program from its command line.
+	 *
+	 * @param args the command line
+	 * @return     the compiled program
+	 * @throws ProgramException if the program is malformed or ill-typed
+	 */
+	public static Program compile(String args[]) throws ProgramException {
+		return compile(args, 0);
+	}
+
+	/**
+	 * Compiles a program from the part of a command line following any
+	 * options.
+	 *
+	 * @param args  the command line
+	 * @param start the index of the first argument of the program
+	 * @return      the compiled program
+	 * @throws ProgramException if the program is malformed or ill-typed
+	 */
+	public static Program compile(String args[], int start) throws ProgramException {
+		List<Instruction> code = new ArrayList<>();
+		int stack[] = new int[args.length]; //indices of the instructions that produced each element
+		int depth = 0;
+		int maxDepth = 0;
+
+		for(int i = start; i < args.length; i++) {
+			String arg = args[i];
+			char op = arg.isEmpty() ? '\0' : canonicalize(arg.charAt(0));
+			int nArgs = getArgumentCount(op);
+			if(nArgs == -1) {
+				throw new ProgramException(i, "unknown command \"" + arg + "\"");
+			}
+			if(i + nArgs >= args.length) {
+				throw new ProgramException(i, "command " + op + " expects " + nArgs
+					+ " argument" + (nArgs == 1 ? "" : "s"));
+			}
+
+			Instruction ins = null;
+			switch(op) {
+				case 'u':
+					if(depth < 1) throw new ProgramException(i, "nothing on the stack to duplicate");
+					stack[depth] = stack[depth - 1];
+					depth++;
+					break;
+				case 'w':
+				{
+					if(depth < 2) throw new ProgramException(i, "fewer than two elements on the stack to swap");
+					int t = stack[depth - 1];
+					stack[depth - 1] = stack[depth - 2];
+					stack[depth - 2] = t;
+					break;
+				}
+				case 'n':
+					ins = new Instruction(op, i, new int[0]);
+					ins.value = parseNumber(args, i + 1);
+					ins.type = Type.SCALAR;
+					break;
+				case 'v':
+					ins = new Instruction(op, i, new int[0]);
+					ins.value = new Vec4(parseNumber(args, i + 1), parseNumber(args, i + 2),
+						parseNumber(args, i + 3), parseNumber(args, i + 4));
+					ins.type = Type.VECTOR;
+					break;
+				case 'x':
+				{
+					float mtx[] = new float[16];
+					for(int j = 0; j < 16; j++) {
+						mtx[j] = parseNumber(args, i + 1 + j);
+					}
+					ins = new Instruction(op, i, new int[0]);
+					ins.value = new Mtx44(mtx);
+					ins.type = Type.MATRIX;
+					break;
+				}
+				case 'i':
+					ins = new Instruction(op, i, new int[0]);
+					ins.path = args[i + 1];
+					ins.type = Type.IMAGE;
+					break;
+				case 'o':
+				{
+					if(depth < 1) throw new ProgramException(i, "nothing on the stack to write");
+					int src = stack[--depth];
+					if(code.get(src).type != Type.IMAGE) {
+						throw new ProgramException(i, "cannot write " + describe(code.get(src).type) + " as an image");
+					}
+					ins = new Instruction(op, i, new int[] { src });
+					ins.path = args[i + 1];
+					break;
+				}
+				case 'r':
+				{
+					if(depth < 1) throw new ProgramException(i, "nothing on the stack to reorient");
+					int src = stack[--depth];
+					if(code.get(src).type != Type.IMAGE) {
+						throw new ProgramException(i, "command r is not defined for " + describe(code.get(src).type));
+					}
+					ins = new Instruction(op, i, new int[] { src });
+					ins.value = Orientation.forName(args[i + 1]);
+					if(ins.value == null) {
+						throw new ProgramException(i + 1, "unknown orientation \"" + args[i + 1] + "\"; expected h, v, 90, 180, 270, or t");
+					}
+					ins.type = Type.IMAGE;
+					break;
+				}
+				case 'e':
+					if(depth < 1) throw new ProgramException(i, "nothing on the stack to print");
+					ins = new Instruction(op, i, new int[] { stack[--depth] });
+					break;
+				case 't':
+				case 'T':
+				{
+					if(depth < 2) throw new ProgramException(i, "command " + op + " needs two elements on the stack");
+					int src2 = stack[--depth];
+					int src1 = stack[--depth];
+					Type t1 = code.get(src1).type;
+					Type t2 = code.get(src2).type;
+					if((t1 != Type.SCALAR && t1 != Type.VECTOR) || (t2 != Type.SCALAR && t2 != Type.VECTOR)) {
+						throw new ProgramException(i, "command " + op + " is not defined for "
+							+ describe(t1) + " and " + describe(t2));
+					}
+					ins = new Instruction(op, i, new int[] { src1, src2 });
+					break;
+				}
+				default:
+				{
+					if(depth < 2) throw new ProgramException(i, "command " + op + " needs two elements on the stack");
+					int src2 = stack[--depth];
+					int src1 = stack[--depth];
+					Type t1 = code.get(src1).type;
+					Type t2 = code.get(src2).type;
+					ins = new Instruction(op, i, new int[] { src1, src2 });
+					ins.type = getResultType(op, t1, t2);
+					if(ins.type == null) {
+						throw new ProgramException(i, "command " + op + " is not defined for "
+							+ describe(t1) + " and " + describe(t2));
+					}
+					if(op == 'b') {
+						ins.value = BlendMode.forName(args[i + 1]);
+						if(ins.value == null) {
+							throw new ProgramException(i + 1, "unknown blend mode \"" + args[i + 1] + "\"");
+						}
+						ins.params = new int[] { parseInteger(args, i + 2), parseInteger(args, i + 3) };
+					}
+					break;
+				}
+			}
+
+			if(ins != null) {
+				if(ins.type != null) {
+					stack[depth++] = code.size();
+				}
+				append(code, ins);
+			}
+			maxDepth = Math.max(maxDepth, depth);
+			i += nArgs;
+		}
+
+		return new Program(code.toArray(new Instruction[code.size()]), maxDepth);
+	}
+
+	/**
+	 * Appends an instruction to a program being built, recording it as the
+	 * last use of its operands and collecting the inputs it depends on.
+	 *
+	 * @param code the instructions so far
+	 * @param ins  the instruction to append
+	 */
+	static void append(List<Instruction> code, Instruction ins) {
+		if(ins.op == 'i') ins.inputs.set(code.size());
+		for(int src : ins.args) {
+			code.get(src).lastUse = code.size();
+			ins.inputs.or(code.get(src).inputs);
+		}
+		code.add(ins);
+	}
+
+	/**
+	 * Gets a readable name for a value type, for use in error messages.
+	 *
+	 * @param t the type
+	 * @return  the name of the type with an indefinite article
+	 */
+	private static String describe(Type t) {
+		return (t == Type.IMAGE ? "an " : "a ") + t.name().toLowerCase();
+	}
+
+	/**
+	 * Repeats a scalar.
+	 *
+	 * @param f the scalar
+	 * @param n the number of copies
+	 * @return  an array of n copies of the scalar
+	 */
+	private static float[] broadcast(float f, int n) {
+		float v[] = new float[n];
+		Arrays.fill(v, f);
+		return v;
+	}
+
+	/**
+	 * Gets the indices of the <code>i</code> instructions.
+	 *
+	 * @return the indices of the instructions that read images
+	 */
+	int[] getInputs() {
+		int n = 0;
+		for(Instruction ins : this.code) {
+			if(ins.op == 'i') n++;
+		}
+		int inputs[] = new int[n];
+		n = 0;
+		for(int pc = 0; pc < this.code.length; pc++) {
+			if(this.code[pc].op == 'i') inputs[n++] = pc;
+		}
+		return inputs;
+	}
+
+	/**
+	 * Determines whether the program reads from standard input or writes to
+	 * standard output.
+	 *
+	 * @param op <code>i</code> for input or <code>o</code> for output
+	 * @return   true if an instruction uses the stream
+	 */
+	boolean usesStream(char op) {
+		for(Instruction ins : this.code) {
+			if(ins.op == op && ins.path != null && FloatImageIO.isStream(ins.path)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Execute the program.
+	 *
+	 * @throws IOException if an image could not be read or written
+	 */
+	public void execute() throws IOException {
+		this.execute(new Session());
+	}
+
+	/**
+	 * Evaluate a value producing instruction.
+	 *
+	 * @param ins     the instruction
+	 * @param values  the values of the preceding instructions
+	 * @param session the session, which loads input images
+	 * @return        the value of the instruction
+	 * @throws IOException if an image could not be read
+	 */
+	private Object evaluate(Instruction ins, Object values[], Session session) throws IOException {
+		switch(ins.op) {
+			case 'n':
+			case 'v':
+			case 'x':
+				return ins.value;
+			case 'i':
+				if(ins.path == null) return ins.value;
+				return session.load(ins.path);
+			case 'r':
+				return ((FloatImage) values[ins.args[0]]).reorient((Orientation) ins.value);
+			case 'b':
+			{
+				//positions are in full resolution pixels
+				int step = session.subsampling;
+				return ((FloatImage) values[ins.args[0]]).composite((FloatImage) values[ins.args[1]],
+					(BlendMode) ins.value, Math.floorDiv(ins.params[0], step), Math.floorDiv(ins.params[1], step));
+			}
+			case 'E':
+			case 'P':
+			case 'D':
+			case 'S':
+			{
+				FloatImage i1 = (FloatImage) values[ins.args[0]], i2 = (FloatImage) values[ins.args[1]];
+				if(!ImageMetrics.isSameSize(i1, i2)) {
+					//a render of the wrong size must not pass
+					session.failedChecks++;
+					session.messages.println("Comparison at argument " + (ins.position + 1) + " failed: the images are "
+						+ i1.getWidth() + "x" + i1.getHeight() + " and " + i2.getWidth() + "x" + i2.getHeight());
+				}
+				ImageMetrics metrics = session.comparisons.get(ins.comparison);
+				if(metrics == null) {
+					metrics = new ImageMetrics(i1, i2);
+					if(!ins.lastComparison) session.comparisons.put(ins.comparison, metrics);
+				} else if(ins.lastComparison) {
+					session.comparisons.remove(ins.comparison);
+				}
+				return metrics.get(ins.op);
+			}
+			default:
+				return ImgOp.apply(ins.op, values[ins.args[0]], values[ins.args[1]]);
+		}
+	}
+
+	/**
+	 * Carry out an instruction that does not produce a value: write an image,
+	 * print a value, or check a value against a bound.
+	 *
+	 * @param ins     the instruction
+	 * @param values  the values of the preceding instructions
+	 * @param session the session, which counts failed checks
+	 * @throws IOException if an image could not be written
+	 */
+	private void consume(Instruction ins, Object values[], Session session) throws IOException {
+		switch(ins.op) {
+			case 'o':
+				session.store((FloatImage) values[ins.args[0]], ins.path);
+				break;
+			case 'e':
+			{
+				Object o = values[ins.args[0]];
+				if(o instanceof FloatImage) {
+					FloatImage im = (FloatImage) o;
+					o = "image " + im.getWidth() + "x" + im.getHeight();
+				}
+				session.messages.println(o);
+				break;
+			}
+			case 't':
+			case 'T':
+			{
+				Object o1 = values[ins.args[0]];
+				Object o2 = values[ins.args[1]];
+				//a scalar is checked against every component of a vector
+				int n = o1 instanceof Vec4 || o2 instanceof Vec4 ? 4 : 1;
+				float v1[] = o1 instanceof Vec4 ? ((Vec4) o1).v : broadcast((Float) o1, n);
+				float v2[] = o2 instanceof Vec4 ? ((Vec4) o2).v : broadcast((Float) o2, n);
+				boolean pass = true;
+				for(int c = 0; c < v1.length; c++) {
+					//written so that NaN fails
+					if(ins.op == 't' ? !(v1[c] >= v2[c]) : !(v1[c] <= v2[c])) pass = false;
+				}
+				if(!pass) session.failedChecks++;
+				session.messages.println("Check at argument " + (ins.position + 1) + (pass ? " passed: " : " failed: ")
+					+ o1 + (ins.op == 't' ? " >= " : " <= ") + o2);
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Release the values of an instruction's operands that are not used
+	 * after it.
+	 *
+	 * @param pc     the index of the instruction
+	 * @param values the values of the instructions
+	 */
+	private void release(int pc, Object values[]) {
+		Instruction ins = this.code[pc];
+		for(int src : ins.args) {
+			if(this.code[src].lastUse == pc) values[src] = null;
+		}
+		if(ins.lastUse == -1) values[pc] = null;
+	}
+
+	/**
+	 * Execute a run of instructions tile by tile, or one at a time if its
+	 * images differ in size.
+	 *
+	 * @param run     the indices of the instructions of the run
+	 * @param values  the values of the instructions
+	 * @param session the session
+	 * @param keep    the index of the instruction whose value to keep, or -1
+	 * @throws IOException if an image could not be read
+	 */
+	private void executeRun(int run[], Object values[], Session session, int keep) throws IOException {
+		for(int pc : run) {
+			if(!TiledExecutor.isFusable(this.code[pc])) values[pc] = this.evaluate(this.code[pc], values, session);
+		}
+		if(TiledExecutor.execute(this.code, run, values, keep)) return;
+		for(int pc : run) {
+			if(TiledExecutor.isFusable(this.code[pc])) values[pc] = this.evaluate(this.code[pc], values, session);
+		}
+	}
+
+	/**
+	 * Execute the program in a session. If the session retains results, only
+	 * instructions depending on the session's dirty inputs are evaluated, the
+	 * rest reuse their results from the previous execution, and only outputs
+	 * depending on dirty inputs are written.
+	 *
+	 * @param session the session
+	 * @throws IOException if an image could not be read or written
+	 */
+	void execute(Session session) throws IOException {
+		this.execute(session, -1);
+	}
+
+	/**
+	 * Execute the program in a session, keeping the value of one instruction.
+	 *
+	 * @param session the session
+	 * @param keep    the index of the instruction whose value to keep, or -1
+	 * @return        the value of the kept instruction, or null if there is
+	 *                none or the session has a cache
+	 * @throws IOException if an image could not be read or written
+	 */
+	Object execute(Session session, int keep) throws IOException {
+		if(session.cache != null) {
+			this.executeCached(session);
+			session.comparisons.clear();
+			return null;
+		}
+
+		Object results[] = session.results;
+		Object values[] = results != null ? results : new Object[this.code.length];
+		Object kept = null;
+		for(int pc = 0; pc < this.code.length; pc++) {
+			Instruction ins = this.code[pc];
+			if(results != null && !session.isDirty(ins)) {
+				//result of the previous execution is still valid
+				continue;
+			}
+			if(results == null && this.runEnd[pc] != -1) {
+				//evaluated all at once at the end of the run
+				if(pc != this.runEnd[pc]) continue;
+				int run[] = this.runs[pc];
+				this.executeRun(run, values, session, keep);
+				for(int m : run) {
+					if(m == keep) kept = values[m];
+					this.release(m, values);
+				}
+				continue;
+			}
+
+			if(ins.type == null) {
+				this.consume(ins, values, session);
+			} else {
+				values[pc] = this.evaluate(ins, values, session);
+			}
+			if(pc == keep) kept = values[pc];
+			if(results == null) this.release(pc, values);
+		}
+		session.comparisons.clear();
+		session.clean();
+		return kept;
+	}
+
+	/**
+	 * Execute the program with a result cache. Outputs already in the cache
+	 * are copied from it, and only the instructions needed for the remaining
+	 * outputs are evaluated, resuming from cached intermediate images where
+	 * possible. Written outputs and the images they were written from are
+	 * added to the cache.
+	 *
+	 * @param cache the result cache
+	 * @throws IOException if an image could not be read or written
+	 */
+	private void executeCached(Session session) throws IOException {
+		ResultCache cache = session.cache;
+		String keys[] = ResultCache.getKeys(this, session.pngLevel);
+		File cached[] = new File[this.code.length];
+		boolean needed[] = new boolean[this.code.length];
+
+		//find cache hits and the instructions needed for the rest
+		Deque<Integer> work = new ArrayDeque<>();
+		for(int pc = 0; pc < this.code.length; pc++) {
+			Instruction ins = this.code[pc];
+			if(ins.op == 'o') {
+				cached[pc] = cache.find(keys[pc] + "." + FloatImageIO.getOutputFormat(new File(ins.path)));
+				if(cached[pc] == null) work.push(ins.args[0]);
+			} else if(ins.type == null) {
+				for(int src : ins.args) work.push(src);
+			}
+		}
+		while(!work.isEmpty()) {
+			int pc = work.pop();
+			if(needed[pc]) continue;
+			needed[pc] = true;
+
+			Instruction ins = this.code[pc];
+			if(ins.type == Type.IMAGE && ins.op != 'i') {
+				cached[pc] = cache.find(keys[pc] + ".fpi");
+				if(cached[pc] != null) continue;
+			}
+			for(int src : ins.args) work.push(src);
+		}
+
+		Object values[] = new Object[this.code.length];
+		for(int pc = 0; pc < this.code.length; pc++) {
+			Instruction ins = this.code[pc];
+			if(ins.op == 'o') {
+				File out = new File(ins.path);
+				String name = keys[pc] + "." + FloatImageIO.getOutputFormat(out);
+				if(cached[pc] != null) {
+					Files.copy(cached[pc].toPath(), out.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				} else {
+					int src = ins.args[0];
+					FloatImageIO.write((FloatImage) values[src], out, session.pngLevel);
+					cache.store(out, name);
+					if(cached[src] == null) cache.store((FloatImage) values[src], keys[src] + ".fpi");
+				}
+			} else if(ins.type == null) {
+				this.consume(ins, values, session);
+			} else if(needed[pc]) {
+				if(cached[pc] != null) {
+					values[pc] = FloatImageIO.readFpi(cached[pc]);
+				} else {
+					values[pc] = this.evaluate(ins, values, session);
+				}
+			}
+			this.release(pc, values);
+		}
+	}
+
+}
@@ -0,0 +1,36 @@
+package com.garhoogin.imgop;
+
+/**
+ * Thrown when a program given on the command line is malformed or would
+ * apply a command to operands it isn't defined for.
+ */
+public class ProgramException extends Exception {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * The index of the command line argument the error was found at.
+	 */
+	private final int position;
+
+	/**
+	 * Create a ProgramException.
+	 *
+	 * @param position the index of the offending command line argument
+	 * @param message  the description of the error
+	 */
+	public ProgramException(int position, String message) {
+		super("Argument " + (position + 1) + ": " + message);
+		this.position = position;
+	}
+
+	/**
+	 * Gets the index of the command line argument the error was found at.
+	 *
+	 * @return the argument index
+	 */
+	public int getPosition() {
+		return this.position;
+	}
+
+}
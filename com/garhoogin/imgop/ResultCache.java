@@ -0,0 +1,307 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * This class is a persistent, content addressed cache of program results
+ * stored in a directory. Every instruction of a program is given a key
+ * hashed from its command, its arguments, and the keys of its operands,
+ * where the key of an <code>i</code> instruction is the hash of the image
+ * file's contents rather than its path. Keys therefore stay the same across
+ * runs as long as the computation and its inputs do.
+ *
+ * Entries are the encoded files written by <code>o</code> commands, and the
+ * images written stored in FPI form so that programs sharing a sub-expression
+ * can pick up from it. The cache's size is bounded by evicting the least
+ * recently used entries.
+ *
+ * The total size of the entries is counted when the cache is opened and kept
+ * up to date as entries are added, so the directory is only listed again once
+ * the total passes the bound. Eviction then goes a little below the bound, so
+ * that a full cache is not listed again on every entry added.
+ */
+class ResultCache {
+
+	/**
+	 * The fraction of the maximum size eviction brings the cache down to.
+	 */
+	private static final double EVICT_TARGET = 0.9;
+
+	/**
+	 * The cache directory.
+	 */
+	private final Path dir;
+
+	/**
+	 * The maximum total size of the entries in bytes.
+	 */
+	private final long maxSize;
+
+	/**
+	 * The total size of the entries as far as this process knows. Other
+	 * processes sharing the directory may change it; the count is corrected
+	 * whenever the directory is listed.
+	 */
+	private long size;
+
+	/**
+	 * Create a ResultCache.
+	 *
+	 * @param dir     the cache directory, created if it does not exist
+	 * @param maxSize the maximum total size of the entries in bytes
+	 * @throws IOException if the directory could not be created
+	 */
+	ResultCache(File dir, long maxSize) throws IOException {
+		this.dir = dir.toPath();
+		this.maxSize = maxSize;
+		Files.createDirectories(this.dir);
+		long total = 0;
+		for(BasicFileAttributes a : this.listEntries().values()) total += a.size();
+		this.size = total;
+	}
+
+	/**
+	 * Create a new SHA-256 digest.
+	 *
+	 * @return the digest
+	 */
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch(NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex); //every Java platform supports SHA-256
+		}
+	}
+
+	/**
+	 * Hash the contents of a file.
+	 *
+	 * @param f the file
+	 * @return  the hash
+	 * @throws IOException if the file could not be read
+	 */
+	private static byte[] hashFile(File f) throws IOException {
+		MessageDigest md = newDigest();
+		ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+		try(FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+			while(ch.read(buf) != -1) {
+				buf.flip();
+				md.update(buf);
+				buf.clear();
+			}
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Compute the key of every instruction of a program. Input images are read
+	 * and hashed, but not decoded.
+	 *
+	 * @param program  the program
+	 * @param pngLevel the compression level PNG outputs are written at
+	 * @return         the key of each instruction as a hexadecimal string
+	 * @throws IOException if an input image could not be read
+	 */
+	static String[] getKeys(Program program, int pngLevel) throws IOException {
+		Program.Instruction code[] = program.code;
+		byte hashes[][] = new byte[code.length][];
+		Map<String, byte[]> fileHashes = new HashMap<>();
+		String keys[] = new String[code.length];
+
+		for(int pc = 0; pc < code.length; pc++) {
+			Program.Instruction ins = code[pc];
+			MessageDigest md = newDigest();
+			md.update((byte) ins.op);
+			for(int src : ins.args) {
+				md.update(hashes[src]);
+			}
+
+			if(ins.op == 'i') {
+				byte h[] = fileHashes.get(ins.path);
+				if(h == null) {
+					h = hashFile(new File(ins.path));
+					fileHashes.put(ins.path, h);
+				}
+				md.update(h);
+			} else if(ins.op == 'o') {
+				String format = FloatImageIO.getOutputFormat(new File(ins.path));
+				md.update(format.getBytes("US-ASCII"));
+				if(format.equals("png")) {
+					//the same pixels give different files with other encoders and levels
+					md.update((byte) PngWriter.VERSION);
+					md.update((byte) pngLevel);
+				}
+			} else if(ins.value instanceof Float) {
+				putFloats(md, (Float) ins.value);
+			} else if(ins.value instanceof Vec4) {
+				putFloats(md, ((Vec4) ins.value).v);
+			} else if(ins.value instanceof Mtx44) {
+				putFloats(md, ((Mtx44) ins.value).m);
+			} else if(ins.value instanceof Enum) {
+				md.update(((Enum<?>) ins.value).name().getBytes("US-ASCII"));
+			}
+			if(ins.params != null) {
+				ByteBuffer buf = ByteBuffer.allocate(ins.params.length * 4);
+				for(int param : ins.params) {
+					buf.putInt(param);
+				}
+				md.update(buf.array());
+			}
+
+			hashes[pc] = md.digest();
+			StringBuilder sb = new StringBuilder();
+			for(byte b : hashes[pc]) {
+				sb.append(String.format("%02x", b & 0xFF));
+			}
+			keys[pc] = sb.toString();
+		}
+		return keys;
+	}
+
+	/**
+	 * Add the bit patterns of floating point values to a digest.
+	 *
+	 * @param md the digest
+	 * @param fs the values
+	 */
+	private static void putFloats(MessageDigest md, float... fs) {
+		ByteBuffer buf = ByteBuffer.allocate(fs.length * 4);
+		for(float f : fs) {
+			buf.putInt(Float.floatToIntBits(f));
+		}
+		md.update(buf.array());
+	}
+
+	/**
+	 * Look up an entry, marking it as recently used.
+	 *
+	 * @param name the entry's file name
+	 * @return     the entry's file, or null if it is not cached
+	 */
+	File find(String name) {
+		Path p = this.dir.resolve(name);
+		if(!Files.isRegularFile(p)) return null;
+		try {
+			Files.setLastModifiedTime(p, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch(IOException ex) {
+			//entry was evicted in the meantime
+			return null;
+		}
+		return p.toFile();
+	}
+
+	/**
+	 * Add a file to the cache as an entry.
+	 *
+	 * @param f    the file to copy into the cache
+	 * @param name the entry's file name
+	 * @throws IOException if the entry could not be written
+	 */
+	void store(File f, String name) throws IOException {
+		Path tmp = Files.createTempFile(this.dir, name, ".tmp");
+		try {
+			Files.copy(f.toPath(), tmp, StandardCopyOption.REPLACE_EXISTING);
+			this.commit(tmp, name);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Add an image to the cache as an FPI entry.
+	 *
+	 * @param im   the image
+	 * @param name the entry's file name
+	 * @throws IOException if the entry could not be written
+	 */
+	void store(FloatImage im, String name) throws IOException {
+		Path tmp = Files.createTempFile(this.dir, name, ".tmp");
+		try {
+			FloatImageIO.writeFpi(im, tmp.toFile());
+			this.commit(tmp, name);
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
+	}
+
+	/**
+	 * Move a completely written temporary file into place as an entry, so
+	 * that concurrent runs never see partial entries, then evict entries if
+	 * the cache no longer fits its size bound.
+	 *
+	 * @param tmp  the temporary file
+	 * @param name the entry's file name
+	 * @throws IOException if the entry could not be moved into place
+	 */
+	private void commit(Path tmp, String name) throws IOException {
+		Path p = this.dir.resolve(name);
+		long added = Files.size(tmp);
+		long replaced = Files.isRegularFile(p) ? Files.size(p) : 0;
+		try {
+			Files.move(tmp, p, StandardCopyOption.ATOMIC_MOVE);
+		} catch(AtomicMoveNotSupportedException ex) {
+			Files.move(tmp, p, StandardCopyOption.REPLACE_EXISTING);
+		}
+		this.size += added - replaced;
+		if(this.size > this.maxSize) this.evict();
+	}
+
+	/**
+	 * List the entries of the cache directory.
+	 *
+	 * @return the attributes of every entry by its path
+	 * @throws IOException if the cache directory could not be listed
+	 */
+	private Map<Path, BasicFileAttributes> listEntries() throws IOException {
+		Map<Path, BasicFileAttributes> attrs = new HashMap<>();
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(this.dir)) {
+			for(Path p : ds) {
+				if(p.getFileName().toString().endsWith(".tmp")) continue;
+				BasicFileAttributes a;
+				try {
+					a = Files.readAttributes(p, BasicFileAttributes.class);
+				} catch(NoSuchFileException ex) {
+					continue; //evicted by another run in the meantime
+				}
+				if(a.isRegularFile()) attrs.put(p, a);
+			}
+		}
+		return attrs;
+	}
+
+	/**
+	 * Delete the least recently used entries until the cache is a little
+	 * below its size bound.
+	 *
+	 * @throws IOException if the cache directory could not be listed
+	 */
+	private void evict() throws IOException {
+		final Map<Path, BasicFileAttributes> attrs = this.listEntries();
+		List<Path> entries = new ArrayList<>(attrs.keySet());
+		long size = 0;
+		for(BasicFileAttributes a : attrs.values()) size += a.size();
+		this.size = size;
+		if(size <= this.maxSize) return;
+
+		long target = (long) (this.maxSize * EVICT_TARGET);
+		Collections.sort(entries, new Comparator<Path>() {
+			@Override
+			public int compare(Path p1, Path p2) {
+				return attrs.get(p1).lastModifiedTime().compareTo(attrs.get(p2).lastModifiedTime());
+			}
+		});
+		for(Path p : entries) {
+			if(size <= target) break;
+			size -= attrs.get(p).size();
+			Files.deleteIfExists(p);
+		}
+		this.size = size;
+	}
+
+}
@@ -0,0 +1,224 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs a program over every frame of the frame sequences it
+ * reads. Several frames are processed at the same time, as many as fit in
+ * half of the free memory. Outputs go to numbered files, and anything
+ * written to standard output or printed is written in frame order.
+ *
+ * Inputs that are not sequences are read once and shared by all frames.
+ */
+class SequenceRunner {
+
+	/**
+	 * The program being run.
+	 */
+	private final Program program;
+
+	/**
+	 * The sequences read by the program by their paths.
+	 */
+	private final Map<String, FrameSequence> sequences = new HashMap<>();
+
+	/**
+	 * The number of frames, that of the shortest sequence.
+	 */
+	private final int count;
+
+	/**
+	 * The number of the first output frame.
+	 */
+	private final int first;
+
+	/**
+	 * The work of one frame whose output is held until the frames before it
+	 * are done.
+	 */
+	private static class Frame {
+
+		/**
+		 * The session the frame is executed in.
+		 */
+		Session session;
+
+		/**
+		 * What the frame printed.
+		 */
+		ByteArrayOutputStream messages = new ByteArrayOutputStream();
+
+		/**
+		 * What the frame wrote to standard output.
+		 */
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+	}
+
+	/**
+	 * Create a SequenceRunner for a program and open its sequences.
+	 *
+	 * @param program the program
+	 * @throws IOException if a sequence has no frames
+	 */
+	private SequenceRunner(Program program) throws IOException {
+		this.program = program;
+		int count = Integer.MAX_VALUE;
+		int first = -1;
+		for(Program.Instruction ins : program.code) {
+			if(ins.op != 'i' || ins.path == null || !FrameSequence.isSequence(ins.path)) continue;
+			FrameSequence sequence = this.sequences.get(ins.path);
+			if(sequence == null) {
+				sequence = new FrameSequence(ins.path);
+				this.sequences.put(ins.path, sequence);
+			}
+			count = Math.min(count, sequence.getCount());
+			if(first == -1) first = sequence.getFirst();
+		}
+		this.count = count;
+		this.first = first;
+	}
+
+	/**
+	 * Determines whether a program reads frame sequences.
+	 *
+	 * @param program the program
+	 * @return        true if an <code>i</code> command reads a sequence
+	 */
+	static boolean isSequenceProgram(Program program) {
+		for(Program.Instruction ins : program.code) {
+			if(ins.op == 'i' && ins.path != null && FrameSequence.isSequence(ins.path)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Create a SequenceRunner for a program, checking that every output
+	 * written to a file is numbered so that frames do not overwrite each
+	 * other.
+	 *
+	 * @param program the program
+	 * @return        the runner
+	 * @throws ProgramException if an output is not numbered or standard input
+	 *                          is read
+	 * @throws IOException      if a sequence has no frames
+	 */
+	static SequenceRunner create(Program program) throws ProgramException, IOException {
+		for(Program.Instruction ins : program.code) {
+			if(ins.path == null) continue;
+			if(ins.op == 'i' && FloatImageIO.isStream(ins.path)) {
+				throw new ProgramException(ins.position, "standard input cannot be read along with frame sequences");
+			}
+			if(ins.op == 'o' && !FloatImageIO.isStream(ins.path) && !FrameSequence.isPattern(ins.path)) {
+				throw new ProgramException(ins.position, "output \"" + ins.path
+					+ "\" would be overwritten by every frame; use a numbered pattern like out%04d.png");
+			}
+		}
+		return new SequenceRunner(program);
+	}
+
+	/**
+	 * Gets the number of frames to process at the same time, estimated from
+	 * the size of the first frame and the depth of the program's stack.
+	 *
+	 * @return the number of frames
+	 * @throws IOException if a frame could not be read
+	 */
+	private int getFramesInFlight() throws IOException {
+		long pixels = 1;
+		for(FrameSequence sequence : this.sequences.values()) {
+			pixels = Math.max(pixels, sequence.getPixelCount());
+		}
+		long frameBytes = pixels * 4 * 4 * (this.program.maxDepth + 1);
+		Runtime rt = Runtime.getRuntime();
+		long free = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+		long fit = free / 2 / frameBytes;
+		return (int) Math.max(1, Math.min(Math.max(2, Parallel.threads), fit));
+	}
+
+	/**
+	 * Run the program over every frame.
+	 *
+	 * @param session the session supplying the subsampling and the streams to
+	 *                print and write to, which also counts failed checks
+	 * @throws IOException if an image could not be read or written
+	 */
+	void run(final Session session) throws IOException {
+		//inputs that do not change between frames are read once
+		final Map<String, FloatImage> preloaded = new HashMap<>();
+		for(Program.Instruction ins : this.program.code) {
+			if(ins.op == 'i' && ins.path != null && !this.sequences.containsKey(ins.path)
+					&& !preloaded.containsKey(ins.path)) {
+				preloaded.put(ins.path, session.load(ins.path));
+			}
+		}
+
+		int inFlight = this.getFramesInFlight();
+		ExecutorService pool = Executors.newFixedThreadPool(inFlight);
+		Deque<Future<Frame>> pending = new ArrayDeque<>();
+		try {
+			for(int i = 0; i < this.count; i++) {
+				if(pending.size() >= inFlight) this.finish(pending.removeFirst(), session);
+
+				final Frame frame = new Frame();
+				frame.session = new Session();
+				frame.session.sequences = this.sequences;
+				frame.session.preloaded = preloaded;
+				frame.session.subsampling = session.subsampling;
+				frame.session.pngLevel = session.pngLevel;
+				frame.session.frame = i;
+				frame.session.frameNumber = this.first + i;
+				frame.session.messages = new PrintStream(frame.messages, true);
+				frame.session.stdout = frame.stdout;
+				pending.addLast(pool.submit(new Callable<Frame>() {
+					@Override
+					public Frame call() throws IOException {
+						SequenceRunner.this.program.execute(frame.session);
+						return frame;
+					}
+				}));
+			}
+			while(!pending.isEmpty()) {
+				this.finish(pending.removeFirst(), session);
+			}
+		} finally {
+			for(Future<Frame> f : pending) f.cancel(true);
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Wait for a frame and pass on what it printed and wrote.
+	 *
+	 * @param future  the frame
+	 * @param session the session to pass the output to
+	 * @throws IOException if the frame failed or its output could not be
+	 *                     written
+	 */
+	private void finish(Future<Frame> future, Session session) throws IOException {
+		Frame frame;
+		try {
+			frame = future.get();
+		} catch(InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while processing frames");
+		} catch(ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if(cause instanceof IOException) throw (IOException) cause;
+			if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if(cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+
+		frame.session.messages.flush();
+		session.messages.write(frame.messages.toByteArray());
+		session.messages.flush();
+		if(session.stdout != null && frame.stdout.size() > 0) {
+			frame.stdout.writeTo(session.stdout);
+			session.stdout.flush();
+		}
+		session.failedChecks += frame.session.failedChecks;
+	}
+
+}
@@ -0,0 +1,190 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * This class holds the state of a Program that is kept between executions.
+ * A session that retains results keeps the value of every instruction after
+ * an execution, so that a later execution only needs to re-evaluate the
+ * instructions depending on inputs that were marked dirty in the meantime.
+ *
+ * A session also decides where images come from and go to: the program
+ * loads and stores every image through {@link #load} and {@link #store},
+ * which resolve standard input and output, frames of sequences, numbered
+ * output files, and the images a worker exchanges with its coordinator.
+ */
+class Session {
+
+	/**
+	 * The value of every instruction from the last execution, or null if
+	 * results are not retained.
+	 */
+	Object results[];
+
+	/**
+	 * The indices of the <code>i</code> instructions whose images changed
+	 * since the last execution.
+	 */
+	final BitSet dirty = new BitSet();
+
+	/**
+	 * The cache results are looked up in and added to, or null.
+	 */
+	ResultCache cache;
+
+	/**
+	 * The factor input images are subsampled by, 1 for full resolution.
+	 */
+	int subsampling = 1;
+
+	/**
+	 * The images read from standard input, or null if the program does not
+	 * read any.
+	 */
+	ImageStreamReader stdin;
+
+	/**
+	 * The stream images are written to standard output through, or null if
+	 * the program does not write any.
+	 */
+	OutputStream stdout;
+
+	/**
+	 * The compression level PNG outputs are written at, from 0 to 9.
+	 */
+	int pngLevel = PngWriter.DEFAULT_LEVEL;
+
+	/**
+	 * The stream values and the results of checks are printed to. This is
+	 * standard error when standard output carries images.
+	 */
+	PrintStream messages = System.out;
+
+	/**
+	 * The frame sequences read by the program by their paths, or null if
+	 * the program is not run over sequences.
+	 */
+	Map<String, FrameSequence> sequences;
+
+	/**
+	 * Images already loaded, by their paths, or null. These are used instead
+	 * of reading the files again.
+	 */
+	Map<String, FloatImage> preloaded;
+
+	/**
+	 * The images written by the program by their paths, collected here
+	 * instead of being written if not null.
+	 */
+	Map<String, FloatImage> outputs;
+
+	/**
+	 * The comparisons of pairs of images made during the current execution
+	 * that later instructions ask for again, by the index of the first
+	 * instruction comparing each pair.
+	 */
+	final Map<Integer, ImageMetrics> comparisons = new HashMap<>();
+
+	/**
+	 * The index of the frame of each sequence being processed.
+	 */
+	int frame;
+
+	/**
+	 * The number substituted into numbered output files.
+	 */
+	int frameNumber;
+
+	/**
+	 * The number of <code>t</code> and <code>T</code> checks that failed.
+	 */
+	int failedChecks;
+
+	/**
+	 * Whether the retained results are from an execution that completed.
+	 */
+	private boolean complete;
+
+	/**
+	 * Create a session that does not retain results.
+	 */
+	Session() {
+	}
+
+	/**
+	 * Create a session that retains the results of a program.
+	 *
+	 * @param program the program to be executed in this session
+	 */
+	Session(Program program) {
+		this.results = new Object[program.code.length];
+	}
+
+	/**
+	 * Marks an input as changed.
+	 *
+	 * @param input the index of the <code>i</code> instruction
+	 */
+	void invalidate(int input) {
+		this.dirty.set(input);
+	}
+
+	/**
+	 * Determines whether an instruction must be evaluated again.
+	 *
+	 * @param ins the instruction
+	 * @return    true if the instruction's retained result is out of date
+	 */
+	boolean isDirty(Program.Instruction ins) {
+		return !this.complete || ins.inputs.intersects(this.dirty);
+	}
+
+	/**
+	 * Marks the retained results as up to date after an execution completes.
+	 */
+	void clean() {
+		this.dirty.clear();
+		this.complete = true;
+	}
+
+	/**
+	 * Load an input image.
+	 *
+	 * @param path the path given to the <code>i</code> command
+	 * @return     the image
+	 * @throws IOException if the image could not be read
+	 */
+	FloatImage load(String path) throws IOException {
+		if(FloatImageIO.isStream(path)) return this.stdin.read(this.subsampling);
+		if(this.preloaded != null) {
+			FloatImage im = this.preloaded.get(path);
+			if(im != null) return im;
+		}
+		if(this.sequences != null) {
+			FrameSequence sequence = this.sequences.get(path);
+			if(sequence != null) return sequence.read(this.frame, this.subsampling);
+		}
+		return FloatImageIO.read(new File(path), this.subsampling);
+	}
+
+	/**
+	 * Store an output image.
+	 *
+	 * @param im   the image
+	 * @param path the path given to the <code>o</code> command
+	 * @throws IOException if the image could not be written
+	 */
+	void store(FloatImage im, String path) throws IOException {
+		if(this.outputs != null) {
+			this.outputs.put(path, im);
+		} else if(FloatImageIO.isStream(path)) {
+			FloatImageIO.write(im, FloatImageIO.getOutputFormat(new File(path)), this.stdout, this.pngLevel);
+		} else if(FrameSequence.isPattern(path)) {
+			FloatImageIO.write(im, FrameSequence.getFrameFile(path, this.frameNumber), this.pngLevel);
+		} else {
+			FloatImageIO.write(im, new File(path), this.pngLevel);
+		}
+	}
+
+}
@@ -0,0 +1,746 @@
+package com.garhoogin.imgop;
+
+import java.util.*;
+
+/**
+ * This class executes a run of pixel by pixel instructions one tile of the
+ * image at a time. Each tile passes through every instruction of the run
+ * before the next tile is started, so intermediate images only ever exist as
+ * small scratch planes that stay in the processor's cache, and only the
+ * images used after the run are written out in full.
+ *
+ * Every instruction run this way computes a pixel of its result from the
+ * same pixel of its operands, except flips and rotations, which read their
+ * operand anywhere and so must take it from outside the run. Tiles are
+ * bands of whole rows, or square blocks when a rotation or transpose reads
+ * columns of its source. The run is planned channel by channel with the
+ * same rules the operations of {@link FloatImage} use, so constant,
+ * unchanged, and repeated channels are skipped in the same places and the
+ * results are identical to executing the instructions one at a time.
+ */
+class TiledExecutor {
+
+	/**
+	 * The number of pixels in a tile, chosen so that the scratch planes of a
+	 * few instructions fit in a typical L2 cache.
+	 */
+	static volatile int tilePixels = 8192;
+
+	/**
+	 * The scratch planes of each thread, reused between tiles and runs.
+	 */
+	private static final ThreadLocal<float[][]> SCRATCH = new ThreadLocal<>();
+
+	/**
+	 * Step kinds: an arithmetic operation, a clamp, one row of a color
+	 * transform, and a flip or rotation.
+	 */
+	private static final int STEP_APPLY = 0, STEP_CLAMP = 1, STEP_MATRIX = 2, STEP_GATHER = 3;
+
+	/**
+	 * One channel of one instruction's result to compute for every tile.
+	 */
+	private static class Step {
+
+		/**
+		 * The kind of step.
+		 */
+		int kind;
+
+		/**
+		 * The arithmetic operation of an apply step.
+		 */
+		int op;
+
+		/**
+		 * The slot the result is written to.
+		 */
+		int dst;
+
+		/**
+		 * The slots of the operands, -1 for constant operands.
+		 */
+		int src[];
+
+		/**
+		 * The values of the constant operands.
+		 */
+		float k[];
+
+		/**
+		 * The bounds of a clamp step or the coefficients of a matrix row.
+		 */
+		float params[];
+
+		/**
+		 * Where a flip or rotation reads its source, as given by
+		 * {@link Orientation#getMapping}.
+		 */
+		int map[];
+	}
+
+	/**
+	 * The channels of an image value in a plan: a slot or a constant for each
+	 * channel, mirroring the planes and constants of a FloatImage.
+	 */
+	private static class Value {
+
+		/**
+		 * The slot of each channel, -1 for constant channels.
+		 */
+		int slot[] = { -1, -1, -1, -1 };
+
+		/**
+		 * The constant of each channel.
+		 */
+		float k[] = new float[4];
+	}
+
+	/**
+	 * The full size planes of the slots, null for slots computed in scratch
+	 * planes.
+	 */
+	private final List<float[]> planes = new ArrayList<>();
+
+	/**
+	 * The slots of the input planes.
+	 */
+	private final Map<float[], Integer> inputSlots = new IdentityHashMap<>();
+
+	/**
+	 * The steps in execution order.
+	 */
+	private final List<Step> steps = new ArrayList<>();
+
+	/**
+	 * The scratch plane of each slot, -1 for slots with full size planes.
+	 */
+	private int scratch[];
+
+	/**
+	 * The number of scratch planes needed.
+	 */
+	private int nScratch;
+
+	/**
+	 * The size of the images computed by the run.
+	 */
+	private int width, height;
+
+	/**
+	 * Whether a step reads columns of its source, so tiles should be square.
+	 */
+	private boolean transposes;
+
+	private TiledExecutor() {
+	}
+
+	/**
+	 * Determines whether an instruction can be executed tile by tile.
+	 *
+	 * @param ins the instruction
+	 * @return    true for arithmetic, color transforms, clamps, flips, and
+	 *            rotations producing an image
+	 */
+	static boolean isFusable(Program.Instruction ins) {
+		if(ins.type != Program.Type.IMAGE) return false;
+		switch(ins.op) {
+			case 'a':
+			case 's':
+			case 'm':
+			case 'd':
+			case 'p':
+			case 'c':
+			case 'C':
+			case 'r':
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Determines whether an instruction reads pixels of its operand other
+	 * than the ones it computes, so that its operand must be computed in full
+	 * before it.
+	 *
+	 * @param ins the instruction
+	 * @return    true for flips and rotations
+	 */
+	static boolean readsOtherPixels(Program.Instruction ins) {
+		return ins.op == 'r';
+	}
+
+	/**
+	 * Determines whether an instruction may be evaluated ahead of the
+	 * tiled instructions around it because it does not depend on them: an
+	 * input or constant, or arithmetic on values other than images.
+	 *
+	 * @param ins  the instruction
+	 * @param code the instructions of the program
+	 * @return     true if the instruction does not depend on any image
+	 *             computed tile by tile
+	 */
+	static boolean isIndependent(Program.Instruction ins, Program.Instruction code[]) {
+		switch(ins.op) {
+			case 'n':
+			case 'v':
+			case 'x':
+			case 'i':
+				return true;
+		}
+		if(ins.type == null || ins.type == Program.Type.IMAGE) return false;
+		for(int src : ins.args) {
+			if(code[src].type == Program.Type.IMAGE) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Executes the fusable instructions of a run tile by tile. Every other
+	 * instruction of the run must already have been evaluated. Only the
+	 * results used after the run, and the kept result, are stored. Flips and
+	 * rotations in the run must read images computed before it.
+	 *
+	 * @param code   the instructions of the program
+	 * @param run    the indices of the instructions of the run
+	 * @param values the values of the instructions
+	 * @param keep   the index of the instruction whose value to keep, or -1
+	 * @return       false, without evaluating anything, if the images of the
+	 *               run differ in size
+	 */
+	static boolean execute(Program.Instruction code[], int run[], Object values[], int keep) {
+		int last = run[run.length - 1];
+		int width = -1, height = -1;
+		for(int pc : run) {
+			Program.Instruction ins = code[pc];
+			if(!isFusable(ins)) continue;
+			for(int src : ins.args) {
+				if(!(values[src] instanceof FloatImage)) continue;
+				FloatImage im = (FloatImage) values[src];
+				boolean swap = ins.op == 'r' && ((Orientation) ins.value).swapsAxes();
+				int w = swap ? im.height : im.width;
+				int h = swap ? im.width : im.height;
+				if(width == -1) {
+					width = w;
+					height = h;
+				} else if(w != width || h != height) {
+					return false;
+				}
+			}
+		}
+
+		//plan every channel of every instruction
+		TiledExecutor plan = new TiledExecutor();
+		plan.width = width;
+		plan.height = height;
+		Value planned[] = new Value[code.length];
+		List<Integer> roots = new ArrayList<>();
+		for(int pc : run) {
+			Program.Instruction ins = code[pc];
+			if(!isFusable(ins)) continue;
+			if(ins.op == 'r') {
+				FloatImage src = (FloatImage) values[ins.args[0]];
+				planned[pc] = plan.reorient((Orientation) ins.value, (Value) plan.operand(ins.args[0], planned, values),
+					src.width, src.height);
+			} else {
+				planned[pc] = plan.plan(ins, plan.operand(ins.args[0], planned, values),
+					plan.operand(ins.args[1], planned, values));
+			}
+			if(ins.lastUse > last || pc == keep) roots.add(pc);
+		}
+
+		plan.allocate(roots, planned, width * height);
+		plan.run();
+		for(int pc : roots) {
+			Value v = planned[pc];
+			float rootPlanes[][] = new float[4][];
+			for(int c = 0; c < 4; c++) {
+				if(v.slot[c] != -1) rootPlanes[c] = plan.planes.get(v.slot[c]);
+			}
+			values[pc] = new FloatImage(width, height, rootPlanes, v.k.clone());
+		}
+		return true;
+	}
+
+	/**
+	 * Gets an operand of an instruction in the run: the plan of an image
+	 * computed in the run, the channels of an image computed before it, or a
+	 * constant.
+	 *
+	 * @param pc      the index of the instruction producing the operand
+	 * @param planned the plans of the instructions in the run
+	 * @param values  the values of the instructions
+	 * @return        the operand
+	 */
+	private Object operand(int pc, Value planned[], Object values[]) {
+		if(planned[pc] != null) return planned[pc];
+		if(!(values[pc] instanceof FloatImage)) return values[pc];
+
+		FloatImage im = (FloatImage) values[pc];
+		Value v = new Value();
+		for(int c = 0; c < 4; c++) {
+			v.k[c] = im.constants[c];
+			if(im.planes[c] == null) continue;
+			Integer slot = this.inputSlots.get(im.planes[c]);
+			if(slot == null) {
+				slot = this.planes.size();
+				this.planes.add(im.planes[c]);
+				this.inputSlots.put(im.planes[c], slot);
+			}
+			v.slot[c] = slot;
+		}
+		return v;
+	}
+
+	/**
+	 * Gets the four components of a scalar or vector operand.
+	 *
+	 * @param o the operand
+	 * @return  the components
+	 */
+	private static float[] components(Object o) {
+		if(o instanceof Vec4) return ((Vec4) o).v;
+		float f = (Float) o;
+		return new float[] { f, f, f, f };
+	}
+
+	/**
+	 * Plans the channels of an instruction's result.
+	 *
+	 * @param ins the instruction
+	 * @param o1  the first operand
+	 * @param o2  the second operand
+	 * @return    the result
+	 */
+	private Value plan(Program.Instruction ins, Object o1, Object o2) {
+		if(ins.op == 'c' || ins.op == 'C') {
+			//the unused side is the largest finite float, as in ImgOp.clampMin and clampMax
+			float other[] = new float[4];
+			Arrays.fill(other, ins.op == 'c' ? Float.MAX_VALUE : -Float.MAX_VALUE);
+			float bound[] = ((Vec4) o2).v;
+			return ins.op == 'c' ? this.clamp((Value) o1, bound, other) : this.clamp((Value) o1, other, bound);
+		}
+
+		int op;
+		switch(ins.op) {
+			case 'a':
+				op = FloatImage.OP_ADD;
+				break;
+			case 's':
+				op = FloatImage.OP_SUB;
+				break;
+			case 'm':
+				op = FloatImage.OP_MUL;
+				break;
+			case 'd':
+				op = FloatImage.OP_DIV;
+				break;
+			default:
+				op = FloatImage.OP_POW;
+				break;
+		}
+		if(o1 instanceof Value && o2 instanceof Value) return this.apply(op, (Value) o1, (Value) o2);
+		if(o1 instanceof Mtx44) return this.colorTransform(((Mtx44) o1).m, (Value) o2);
+		//a constant operand applies to the image whichever side it is on
+		if(o1 instanceof Value) return this.apply(op, (Value) o1, components(o2));
+		return this.apply(op, (Value) o2, components(o1));
+	}
+
+	/**
+	 * Adds a step computing a new slot.
+	 *
+	 * @param kind   the kind of step
+	 * @param op     the arithmetic operation
+	 * @param src    the slots of the operands
+	 * @param k      the constant operands
+	 * @param params the bounds or coefficients
+	 * @return       the slot of the result
+	 */
+	private int addStep(int kind, int op, int src[], float k[], float params[]) {
+		Step step = new Step();
+		step.kind = kind;
+		step.op = op;
+		step.src = src;
+		step.k = k;
+		step.params = params;
+		step.dst = this.planes.size();
+		this.planes.add(null);
+		this.steps.add(step);
+		return step.dst;
+	}
+
+	/**
+	 * Plans an operation between an image and a constant color, as
+	 * {@link FloatImage#add(float, float, float, float)} and its siblings
+	 * compute it.
+	 *
+	 * @param op the operation
+	 * @param a  the image
+	 * @param k  the constant for each channel
+	 * @return   the result
+	 */
+	private Value apply(int op, Value a, float k[]) {
+		Value r = new Value();
+		for(int c = 0; c < 4; c++) {
+			int same;
+			if(a.slot[c] == -1) {
+				r.k[c] = FloatImage.apply(op, a.k[c], k[c]);
+			} else if(FloatImage.isIdentity(op, k[c])) {
+				r.slot[c] = a.slot[c];
+			} else if((same = findEquivalent(a.slot, k, c)) != -1) {
+				r.slot[c] = r.slot[same];
+			} else {
+				r.slot[c] = this.addStep(STEP_APPLY, op, new int[] { a.slot[c], -1 }, new float[] { 0.0f, k[c] }, null);
+			}
+		}
+		return r;
+	}
+
+	/**
+	 * Plans an operation between two images of the same size, as
+	 * {@link FloatImage#add(FloatImage)} and its siblings compute it.
+	 *
+	 * @param op the operation
+	 * @param a  the first image
+	 * @param b  the second image
+	 * @return   the result
+	 */
+	private Value apply(int op, Value a, Value b) {
+		Value r = new Value();
+		channels:
+		for(int c = 0; c < 4; c++) {
+			int sa = a.slot[c], sb = b.slot[c];
+			if(sa == -1 && sb == -1) {
+				r.k[c] = FloatImage.apply(op, a.k[c], b.k[c]);
+				continue;
+			}
+			if(sb == -1 && FloatImage.isIdentity(op, b.k[c])) {
+				r.slot[c] = sa;
+				r.k[c] = a.k[c];
+				continue;
+			}
+			for(int p = 0; p < c; p++) {
+				if(a.slot[p] != sa || b.slot[p] != sb) continue;
+				if(sa == -1 && Float.floatToRawIntBits(a.k[p]) != Float.floatToRawIntBits(a.k[c])) continue;
+				if(sb == -1 && Float.floatToRawIntBits(b.k[p]) != Float.floatToRawIntBits(b.k[c])) continue;
+				r.slot[c] = r.slot[p];
+				continue channels;
+			}
+			r.slot[c] = this.addStep(STEP_APPLY, op, new int[] { sa, sb }, new float[] { a.k[c], b.k[c] }, null);
+		}
+		return r;
+	}
+
+	/**
+	 * Plans a color transform, as {@link FloatImage#colorTransform} computes
+	 * it.
+	 *
+	 * @param mtx the matrix
+	 * @param a   the image
+	 * @return    the result
+	 */
+	private Value colorTransform(float mtx[], Value a) {
+		Value r = new Value();
+		int out[] = { -1, -1, -1, -1 }; //slots of the rows that are computed
+		rows:
+		for(int row = 0; row < 4; row++) {
+			boolean constant = true;
+			int selected = -1;
+			for(int col = 0; col < 4; col++) {
+				float coef = mtx[row * 4 + col];
+				if(coef != 0.0f && a.slot[col] != -1) constant = false;
+				if(coef == 1.0f && selected == -1) selected = col;
+				else if(coef != 0.0f) selected = -2;
+			}
+			float coefs[] = Arrays.copyOfRange(mtx, row * 4, row * 4 + 4);
+			if(constant) {
+				r.k[row] = a.k[0] * coefs[0] + a.k[1] * coefs[1] + a.k[2] * coefs[2] + a.k[3] * coefs[3];
+				continue;
+			}
+			if(selected >= 0) {
+				r.slot[row] = a.slot[selected];
+				continue;
+			}
+			for(int prev = 0; prev < row; prev++) {
+				if(out[prev] != -1 && Arrays.equals(Arrays.copyOfRange(mtx, prev * 4, prev * 4 + 4), coefs)) {
+					r.slot[row] = out[prev];
+					continue rows;
+				}
+			}
+			out[row] = r.slot[row] = this.addStep(STEP_MATRIX, 0, a.slot.clone(), a.k.clone(), coefs);
+		}
+		return r;
+	}
+
+	/**
+	 * Plans a clamp, as {@link FloatImage#clamp} computes it.
+	 *
+	 * @param a   the image
+	 * @param min the lower bound of each channel
+	 * @param max the upper bound of each channel
+	 * @return    the result
+	 */
+	private Value clamp(Value a, float min[], float max[]) {
+		Value r = new Value();
+		for(int c = 0; c < 4; c++) {
+			float lo = min[c], hi = max[c];
+			if(a.slot[c] == -1) {
+				r.k[c] = Math.min(Math.max(a.k[c], lo), hi);
+				continue;
+			}
+			if(lo == Float.NEGATIVE_INFINITY && hi == Float.POSITIVE_INFINITY) {
+				r.slot[c] = a.slot[c];
+				continue;
+			}
+			int same = findEquivalent(a.slot, min, c);
+			if(same != -1 && Float.floatToRawIntBits(max[same]) == Float.floatToRawIntBits(hi)) {
+				r.slot[c] = r.slot[same];
+				continue;
+			}
+			r.slot[c] = this.addStep(STEP_CLAMP, 0, new int[] { a.slot[c] }, new float[1], new float[] { lo, hi });
+		}
+		return r;
+	}
+
+	/**
+	 * Plans a flip or rotation of an image computed before the run, as
+	 * {@link FloatImage#reorient} computes it.
+	 *
+	 * @param o         the orientation
+	 * @param a         the image
+	 * @param srcWidth  the width of the image
+	 * @param srcHeight the height of the image
+	 * @return          the result
+	 */
+	private Value reorient(Orientation o, Value a, int srcWidth, int srcHeight) {
+		Value r = new Value();
+		r.k = a.k.clone();
+		int map[] = o.getMapping(srcWidth, srcHeight);
+		float none[] = new float[4];
+		for(int c = 0; c < 4; c++) {
+			if(a.slot[c] == -1) continue;
+			int same = findEquivalent(a.slot, none, c);
+			if(same != -1) {
+				r.slot[c] = r.slot[same];
+				continue;
+			}
+			r.slot[c] = this.addStep(STEP_GATHER, 0, new int[] { a.slot[c] }, new float[1], null);
+			this.steps.get(this.steps.size() - 1).map = map;
+		}
+		if(o.swapsAxes()) this.transposes = true;
+		return r;
+	}
+
+	/**
+	 * Finds an earlier channel with the same slot and the same operand.
+	 *
+	 * @param slots the slots of the image
+	 * @param k     the operand for each channel
+	 * @param c     the channel
+	 * @return      the index of an earlier equivalent channel, or -1
+	 */
+	private static int findEquivalent(int slots[], float k[], int c) {
+		for(int p = 0; p < c; p++) {
+			if(slots[p] == slots[c] && Float.floatToRawIntBits(k[p]) == Float.floatToRawIntBits(k[c])) return p;
+		}
+		return -1;
+	}
+
+	/**
+	 * Drops the steps whose results are never used, gives full size planes to
+	 * the channels of the results that are stored, and assigns scratch planes
+	 * to the rest so that a plane is reused once its slot is no longer read.
+	 *
+	 * @param roots   the indices of the instructions whose results are stored
+	 * @param planned the plans of the instructions
+	 * @param nPx     the number of pixels
+	 */
+	private void allocate(List<Integer> roots, Value planned[], int nPx) {
+		int nSlots = this.planes.size();
+		boolean live[] = new boolean[nSlots];
+		boolean full[] = new boolean[nSlots];
+		for(int pc : roots) {
+			for(int slot : planned[pc].slot) {
+				if(slot != -1) live[slot] = full[slot] = true;
+			}
+		}
+		for(int i = this.steps.size() - 1; i >= 0; i--) {
+			Step step = this.steps.get(i);
+			if(!live[step.dst]) {
+				this.steps.remove(i);
+				continue;
+			}
+			for(int src : step.src) {
+				if(src != -1) live[src] = true;
+			}
+		}
+
+		int lastRead[] = new int[nSlots];
+		for(int i = 0; i < this.steps.size(); i++) {
+			for(int src : this.steps.get(i).src) {
+				if(src != -1) lastRead[src] = i;
+			}
+		}
+		this.scratch = new int[nSlots];
+		Arrays.fill(this.scratch, -1);
+		Deque<Integer> free = new ArrayDeque<>();
+		for(int i = 0; i < this.steps.size(); i++) {
+			Step step = this.steps.get(i);
+			//steps work pixel by pixel, so a result may overwrite an operand read for the last time
+			for(int src : step.src) {
+				if(src != -1 && this.scratch[src] != -1 && lastRead[src] == i && !free.contains(this.scratch[src])) {
+					free.push(this.scratch[src]);
+				}
+			}
+			if(full[step.dst]) {
+				this.planes.set(step.dst, new float[nPx]);
+			} else {
+				this.scratch[step.dst] = free.isEmpty() ? this.nScratch++ : free.pop();
+			}
+		}
+	}
+
+	/**
+	 * Runs the steps over every tile.
+	 */
+	private void run() {
+		if(this.steps.isEmpty() || this.width == 0 || this.height == 0) return;
+		final int tileWidth, tileHeight;
+		int pixels = tilePixels;
+		if(this.transposes) {
+			int side = Math.max(1, (int) Math.sqrt(pixels));
+			tileWidth = Math.min(this.width, side);
+			tileHeight = side;
+		} else {
+			tileWidth = Math.min(this.width, pixels);
+			tileHeight = Math.max(1, pixels / tileWidth);
+		}
+		final int tilesX = (this.width + tileWidth - 1) / tileWidth;
+		int tilesY = (this.height + tileHeight - 1) / tileHeight;
+		Parallel.forEachRange(tilesX * tilesY, 1, new Parallel.Band() {
+			@Override
+			public void run(int band, int t0, int t1) {
+				TiledExecutor ex = TiledExecutor.this;
+				float buffers[][] = getScratch(ex.nScratch, tileWidth * tileHeight);
+				for(int t = t0; t < t1; t++) {
+					int x0 = (t % tilesX) * tileWidth;
+					int y0 = (t / tilesX) * tileHeight;
+					int x1 = Math.min(ex.width, x0 + tileWidth);
+					int y1 = Math.min(ex.height, y0 + tileHeight);
+					for(Step step : ex.steps) {
+						ex.runStep(step, buffers, x0, x1, y0, y1);
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Gets the calling thread's scratch planes, allocating more if needed.
+	 *
+	 * @param count the number of planes
+	 * @param size  the size of a plane
+	 * @return      the planes
+	 */
+	private static float[][] getScratch(int count, int size) {
+		float buffers[][] = SCRATCH.get();
+		if(buffers == null || buffers.length < count || (count > 0 && buffers[0].length < size)) {
+			buffers = new float[count][size];
+			SCRATCH.set(buffers);
+		}
+		return buffers;
+	}
+
+	/**
+	 * Runs one step on one tile. Scratch planes hold the tile's rows one after
+	 * another.
+	 *
+	 * @param step    the step
+	 * @param buffers the scratch planes
+	 * @param x0      the first column of the tile
+	 * @param x1      the column after the last column of the tile
+	 * @param y0      the first row of the tile
+	 * @param y1      the row after the last row of the tile
+	 */
+	private void runStep(Step step, float buffers[][], int x0, int x1, int y0, int y1) {
+		int tileWidth = x1 - x0;
+		if(step.kind == STEP_GATHER) {
+			int slot = step.src[0];
+			if(this.scratch[step.dst] != -1) {
+				FloatImage.gather(this.planes.get(slot), step.map, buffers[this.scratch[step.dst]],
+					-(y0 * tileWidth + x0), tileWidth, x0, x1, y0, y1);
+			} else {
+				FloatImage.gather(this.planes.get(slot), step.map, this.planes.get(step.dst),
+					0, this.width, x0, x1, y0, y1);
+			}
+			return;
+		}
+
+		//tiles of whole rows are contiguous, so they are done in one go
+		int n = tileWidth, rows = y1 - y0;
+		if(n == this.width) {
+			n *= rows;
+			rows = 1;
+		}
+		int nSrc = step.src.length;
+		float src[][] = new float[nSrc][];
+		for(int i = 0; i < nSrc; i++) {
+			int slot = step.src[i];
+			if(slot != -1) src[i] = this.scratch[slot] != -1 ? buffers[this.scratch[slot]] : this.planes.get(slot);
+		}
+		float dst[] = this.scratch[step.dst] != -1 ? buffers[this.scratch[step.dst]] : this.planes.get(step.dst);
+		int srcOff[] = new int[nSrc];
+		for(int row = 0; row < rows; row++) {
+			int fullOff = (y0 + row) * this.width + x0;
+			for(int i = 0; i < nSrc; i++) {
+				if(step.src[i] != -1) srcOff[i] = this.scratch[step.src[i]] != -1 ? row * n : fullOff;
+			}
+			int dOff = this.scratch[step.dst] != -1 ? row * n : fullOff;
+			this.runRow(step, src, srcOff, dst, dOff, n);
+		}
+	}
+
+	/**
+	 * Runs a step other than a flip or rotation on consecutive pixels.
+	 *
+	 * @param step   the step
+	 * @param src    the planes of the operands, null for constants
+	 * @param srcOff the offsets of the pixels in the operand planes
+	 * @param dst    the plane of the result
+	 * @param dOff   the offset of the pixels in the result plane
+	 * @param n      the number of pixels
+	 */
+	private void runRow(Step step, float src[][], int srcOff[], float dst[], int dOff, int n) {
+		switch(step.kind) {
+			case STEP_APPLY:
+				if(src[0] == null) FloatImage.apply(step.op, step.k[0], src[1], srcOff[1], dst, dOff, n);
+				else if(src[1] == null) FloatImage.apply(step.op, src[0], srcOff[0], step.k[1], dst, dOff, n);
+				else FloatImage.apply(step.op, src[0], srcOff[0], src[1], srcOff[1], dst, dOff, n);
+				break;
+			case STEP_CLAMP:
+			{
+				float a[] = src[0];
+				int aOff = srcOff[0];
+				float lo = step.params[0], hi = step.params[1];
+				for(int i = 0; i < n; i++) dst[dOff + i] = Math.min(Math.max(a[aOff + i], lo), hi);
+				break;
+			}
+			default:
+			{
+				float pxR[] = src[0], pxG[] = src[1], pxB[] = src[2], pxA[] = src[3];
+				float kr = step.k[0], kg = step.k[1], kb = step.k[2], ka = step.k[3];
+				float a = step.params[0], b = step.params[1], c = step.params[2], d = step.params[3];
+				for(int i = 0; i < n; i++) {
+					float cr = pxR != null ? pxR[srcOff[0] + i] : kr;
+					float cg = pxG != null ? pxG[srcOff[1] + i] : kg;
+					float cb = pxB != null ? pxB[srcOff[2] + i] : kb;
+					float ca = pxA != null ? pxA[srcOff[3] + i] : ka;
+					dst[dOff + i] = cr * a + cg * b + cb * c + ca * d;
+				}
+				break;
+			}
+		}
+	}
+
+}
@@ -5,7 +5,7 @@ package com.garhoogin.imgop;
  *
  * @author Declan Moore
  */
-class Vec4 {
+public class Vec4 {
 
 	/**
 	 * Array of this vector's elements
@@ -78,5 +78,10 @@ class Vec4 {
 		return new Vec4(v[0] / v2.v[0], v[1] / v2.v[1], v[2] / v2.v[2], v[3] / v2.v[3]);
 	}
 
+	@Override
+	public String toString() {
+		return "(" + v[0] + ", " + v[1] + ", " + v[2] + ", " + v[3] + ")";
+	}
+
 }
 
@@ -0,0 +1,135 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * This class runs a program repeatedly, re-executing it whenever one of its
+ * input images changes on disk. The results of every instruction are kept
+ * between executions, so only the changed image is decoded again, and only
+ * the instructions and outputs depending on it are recomputed.
+ */
+class Watcher {
+
+	/**
+	 * How long to wait for further changes before re-executing, in
+	 * milliseconds. Editors often write a file in several steps.
+	 */
+	private static final long SETTLE_TIME = 100;
+
+	/**
+	 * The program being run.
+	 */
+	private final Program program;
+
+	/**
+	 * The session holding the program's results.
+	 */
+	private final Session session;
+
+	/**
+	 * Maps the absolute path of each input image to the indices of the
+	 * <code>i</code> instructions that read it.
+	 */
+	private final Map<Path, List<Integer>> inputs = new HashMap<>();
+
+	/**
+	 * Create a Watcher for a program.
+	 *
+	 * @param program     the program to run
+	 * @param subsampling the factor to subsample input images by
+	 * @param pngLevel    the compression level of PNG outputs
+	 */
+	Watcher(Program program, int subsampling, int pngLevel) {
+		this.program = program;
+		this.session = new Session(program);
+		this.session.subsampling = subsampling;
+		this.session.pngLevel = pngLevel;
+		for(int pc : program.getInputs()) {
+			Path path = Paths.get(program.code[pc].path).toAbsolutePath().normalize();
+			List<Integer> list = this.inputs.get(path);
+			if(list == null) {
+				list = new ArrayList<>();
+				this.inputs.put(path, list);
+			}
+			list.add(pc);
+		}
+	}
+
+	/**
+	 * Execute the program, reporting rather than propagating failures so that
+	 * watching can continue. Inputs that failed to load stay dirty and are
+	 * retried on the next execution.
+	 */
+	private void executeAndReport() {
+		long start = System.nanoTime();
+		try {
+			this.program.execute(this.session);
+			System.err.println("Updated in " + (System.nanoTime() - start) / 1000000 + " ms.");
+		} catch(IOException | RuntimeException ex) {
+			System.err.println("Execution failed: " + ex.getMessage());
+		}
+	}
+
+	/**
+	 * Marks the inputs read from a path as changed.
+	 *
+	 * @param path the absolute path of the changed file
+	 * @return     true if the path is one of the program's inputs
+	 */
+	private boolean invalidate(Path path) {
+		List<Integer> list = this.inputs.get(path);
+		if(list == null) return false;
+		for(int pc : list) {
+			this.session.invalidate(pc);
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the program, then watches its inputs and re-runs it on every
+	 * change. This method does not return unless interrupted.
+	 *
+	 * @throws IOException          if the inputs could not be watched
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	void run() throws IOException, InterruptedException {
+		this.executeAndReport();
+
+		try(WatchService ws = FileSystems.getDefault().newWatchService()) {
+			Map<WatchKey, Path> dirs = new HashMap<>();
+			for(Path path : this.inputs.keySet()) {
+				Path dir = path.getParent();
+				if(dirs.containsValue(dir)) continue;
+				dirs.put(dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY), dir);
+			}
+			System.err.println("Watching " + this.inputs.size() + " input(s) for changes.");
+
+			while(true) {
+				boolean changed = false;
+				WatchKey key = ws.take();
+				do {
+					Path dir = dirs.get(key);
+					for(WatchEvent<?> event : key.pollEvents()) {
+						if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							//events were lost, assume everything changed
+							for(Path path : this.inputs.keySet()) this.invalidate(path);
+							changed = true;
+						} else {
+							Path path = dir.resolve((Path) event.context());
+							changed |= this.invalidate(path);
+						}
+					}
+					key.reset();
+					key = ws.poll(SETTLE_TIME, TimeUnit.MILLISECONDS);
+				} while(key != null);
+
+				if(changed) this.executeAndReport();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,219 @@
+package com.garhoogin.imgop;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * This class is a worker process that runs programs on tiles of images sent
+ * by a {@link Coordinator}. It listens on a TCP port of the loopback
+ * interface and serves any number of connections at the same time.
+ *
+ * On a connection, each request is the command line of a program followed
+ * by the images its <code>i</code> commands read, and each reply holds what
+ * the program printed and the images its <code>o</code> commands wrote.
+ * Images are sent as FPI files, the raw float planes ImgOp works with, so
+ * nothing is lost or converted on the way. The worker never reads or writes
+ * files itself.
+ */
+class Worker {
+
+	/**
+	 * The reply status of a request that succeeded.
+	 */
+	static final int STATUS_OK = 0;
+
+	/**
+	 * The reply status of a request that failed, followed by a message.
+	 */
+	static final int STATUS_ERROR = 1;
+
+	/**
+	 * The reply status of a request the worker could not finish for want of
+	 * memory, followed by a message. Another worker may still succeed.
+	 */
+	static final int STATUS_OUT_OF_MEMORY = 2;
+
+	/**
+	 * The line a worker prints to standard output once it is listening,
+	 * followed by its port.
+	 */
+	static final String READY = "ImgOp worker listening on port ";
+
+	/**
+	 * The port to listen on, 0 for any free port.
+	 */
+	private final int port;
+
+	/**
+	 * Create a Worker.
+	 *
+	 * @param port the port to listen on, 0 for any free port
+	 */
+	Worker(int port) {
+		this.port = port;
+	}
+
+	/**
+	 * Listens for connections and serves them. This method does not return
+	 * unless the server socket fails.
+	 *
+	 * @throws IOException if the port could not be listened on
+	 */
+	void run() throws IOException {
+		try(ServerSocket server = new ServerSocket(this.port, 50, InetAddress.getLoopbackAddress())) {
+			System.out.println(READY + server.getLocalPort());
+			System.out.flush();
+			while(true) {
+				final Socket socket = server.accept();
+				Thread t = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						Worker.this.serve(socket);
+					}
+				}, "ImgOp worker connection");
+				t.setDaemon(true);
+				t.start();
+			}
+		}
+	}
+
+	/**
+	 * Serves the requests of one connection until it is closed.
+	 *
+	 * @param socket the connection
+	 */
+	private void serve(Socket socket) {
+		try(Socket s = socket) {
+			s.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+			while(true) {
+				int nArgs;
+				try {
+					nArgs = in.readInt();
+				} catch(EOFException ex) {
+					return;
+				}
+				String args[] = new String[nArgs];
+				for(int i = 0; i < nArgs; i++) args[i] = readString(in);
+				Map<String, FloatImage> inputs = new HashMap<>();
+				int nInputs = in.readInt();
+				for(int i = 0; i < nInputs; i++) {
+					String path = readString(in);
+					inputs.put(path, readImage(in, path));
+				}
+				this.execute(args, inputs, out);
+				out.flush();
+			}
+		} catch(IOException | OutOfMemoryError ex) {
+			//the coordinator went away or the request did not fit in memory,
+			//it retries the tile elsewhere if it still needs it
+		}
+	}
+
+	/**
+	 * Runs a program on images that were sent and writes the reply.
+	 *
+	 * @param args   the command line of the program
+	 * @param inputs the images read by the program by their paths
+	 * @param out    the stream to write the reply to
+	 * @throws IOException if the reply could not be written
+	 */
+	private void execute(String args[], Map<String, FloatImage> inputs, DataOutputStream out) throws IOException {
+		ByteArrayOutputStream messages = new ByteArrayOutputStream();
+		Session session = new Session();
+		session.preloaded = inputs;
+		session.outputs = new LinkedHashMap<>();
+		session.messages = new PrintStream(messages, true, "UTF-8");
+		try {
+			Program program = Program.compile(args);
+			for(int pc : program.getInputs()) {
+				if(!inputs.containsKey(program.code[pc].path)) {
+					throw new ProgramException(program.code[pc].position, "input \"" + program.code[pc].path
+						+ "\" was not sent to the worker");
+				}
+			}
+			program.execute(session);
+		} catch(ProgramException | IOException | RuntimeException ex) {
+			out.writeInt(STATUS_ERROR);
+			writeString(out, String.valueOf(ex.getMessage()));
+			return;
+		} catch(OutOfMemoryError ex) {
+			//let go of the images before answering
+			session = null;
+			inputs.clear();
+			out.writeInt(STATUS_OUT_OF_MEMORY);
+			writeString(out, "Out of memory");
+			return;
+		}
+
+		out.writeInt(STATUS_OK);
+		writeString(out, new String(messages.toByteArray(), StandardCharsets.UTF_8));
+		out.writeInt(session.failedChecks);
+		out.writeInt(session.outputs.size());
+		for(Map.Entry<String, FloatImage> e : session.outputs.entrySet()) {
+			writeString(out, e.getKey());
+			writeImage(out, e.getValue());
+		}
+	}
+
+	/**
+	 * Writes a string of any length as its length and UTF-8 bytes.
+	 *
+	 * @param out the stream
+	 * @param s   the string
+	 * @throws IOException if the stream could not be written
+	 */
+	static void writeString(DataOutputStream out, String s) throws IOException {
+		byte b[] = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	/**
+	 * Reads a string written by {@link #writeString}.
+	 *
+	 * @param in the stream
+	 * @return   the string
+	 * @throws IOException if the stream ended first
+	 */
+	static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if(length < 0) throw new IOException("Malformed request");
+		byte b[] = new byte[length];
+		in.readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Writes an image as its length and FPI file.
+	 *
+	 * @param out the stream
+	 * @param im  the image
+	 * @throws IOException if the stream could not be written
+	 */
+	static void writeImage(DataOutputStream out, FloatImage im) throws IOException {
+		out.writeLong(FloatImageIO.FPI_HEADER_SIZE + (long) im.width * im.height * 4 * 4);
+		FloatImageIO.write(im, "fpi", out);
+	}
+
+	/**
+	 * Reads an image written by {@link #writeImage}.
+	 *
+	 * @param in   the stream
+	 * @param name the name of the image for error messages
+	 * @return     the image
+	 * @throws IOException if the stream ended first or the image is malformed
+	 */
+	static FloatImage readImage(DataInputStream in, String name) throws IOException {
+		long size = in.readLong();
+		if(size < FloatImageIO.FPI_HEADER_SIZE || size > Integer.MAX_VALUE) throw new IOException("Malformed image: " + name);
+		byte b[] = new byte[(int) size];
+		in.readFully(b);
+		return FloatImageIO.decodeFpi(ByteBuffer.wrap(b), 1, name);
+	}
+
+}